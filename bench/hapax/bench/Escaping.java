@@ -0,0 +1,201 @@
+/*
+ * Hapax2
+ * Copyright (c) 2007 Doug Coker
+ * Copyright (c) 2009 John Pritchard
+ *
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hapax.bench;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import hapax.Modifiers;
+
+/**
+ * Escaping time of the modifiers, against the previous implementation, on
+ * mostly ASCII values: most need no escaping, some have markup characters,
+ * and few have characters beyond Latin-1.
+ *
+ * <pre>
+ * java hapax.bench.Escaping [values]
+ * </pre>
+ *
+ * @author jdp
+ */
+public final class Escaping {
+
+    private final static String[] Words = { "order", "Widget", "42", "shipped", "to", "customer",
+        "Lorem", "ipsum", "dolor", "sit", "amet", "2009-10-18", "total", "EUR", "qty" };
+
+    private final static String[] Marked = { "Smith & Sons", "\"quoted\"", "<b>bold</b>",
+        "a\nb", "x < y", "O'Brien", "caf\u00e9", "\u65e5\u672c" };
+
+    public static void main(String[] argv) {
+        try {
+            int count = (0 < argv.length) ? Integer.parseInt(argv[0]) : 10000;
+            List<String> values = Values(count);
+
+            System.out.println("modifier   previous ns/value   current ns/value");
+            for (Modifiers.FLAGS modifier : Modifiers.FLAGS.values()) {
+                if (Modifiers.FLAGS.U == modifier) continue;
+                else {
+                    List<Modifiers.FLAGS> list = Collections.singletonList(modifier);
+                    /*
+                     * Warm up
+                     */
+                    for (int cc = 0; cc < 20; cc++) {
+                        Previous(modifier, values);
+                        Current(list, values);
+                    }
+                    long previous = Long.MAX_VALUE, current = Long.MAX_VALUE;
+                    for (int cc = 0; cc < 20; cc++) {
+                        previous = Math.min(previous, Previous(modifier, values));
+                        current = Math.min(current, Current(list, values));
+                    }
+                    System.out.println(String.format("%-8s %19.1f %18.1f", modifier.name(),
+                        ((double) previous / count), ((double) current / count)));
+                }
+            }
+        } catch (Exception exc) {
+            exc.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @return Values of one to six words, one in eight with a marked word
+     */
+    private final static List<String> Values(int count) {
+        Random random = new Random(count);
+        List<String> values = new ArrayList<String>(count);
+        for (int cc = 0; cc < count; cc++) {
+            StringBuilder value = new StringBuilder();
+            for (int word = 0, words = 1 + random.nextInt(6); word < words; word++) {
+                if (0 < word) value.append(' ');
+                if (0 == random.nextInt(8)) value.append(Marked[random.nextInt(Marked.length)]);
+                else
+                    value.append(Words[random.nextInt(Words.length)]);
+            }
+            values.add(value.toString());
+        }
+        return values;
+    }
+
+    /**
+     * @return Nanoseconds to escape the values
+     */
+    private final static long Current(List<Modifiers.FLAGS> modifiers, List<String> values) {
+        long start = System.nanoTime();
+        int length = 0;
+        for (int cc = 0, count = values.size(); cc < count; cc++) {
+            length += Modifiers.applyModifiers(values.get(cc), modifiers).length();
+        }
+        long time = (System.nanoTime() - start);
+        if (0 > length) throw new IllegalStateException();
+        return time;
+    }
+
+    /**
+     * @return Nanoseconds to escape the values
+     */
+    private final static long Previous(Modifiers.FLAGS modifier, List<String> values) {
+        long start = System.nanoTime();
+        int length = 0;
+        for (int cc = 0, count = values.size(); cc < count; cc++) {
+            String value = values.get(cc);
+            switch (modifier) {
+                case H:
+                    value = HtmlEscape(value);
+                    break;
+                case X:
+                    value = XmlEscape(value);
+                    break;
+                case J:
+                    value = JsEscape(value);
+                    break;
+                case B:
+                    value = value.replaceAll("\n", "<br />");
+                    break;
+                default:
+                    throw new IllegalArgumentException(modifier.name());
+            }
+            length += value.length();
+        }
+        long time = (System.nanoTime() - start);
+        if (0 > length) throw new IllegalStateException();
+        return time;
+    }
+
+    /*
+     * Previous implementation
+     */
+
+    private final static String JsEscape(String unescaped) {
+        final String also_safe = "_ ";
+        StringBuilder escaped = new StringBuilder();
+        for (int i = 0; i < unescaped.length(); i++) {
+            char ch = unescaped.charAt(i);
+            if (Character.isLetterOrDigit(ch) || also_safe.indexOf(ch) != -1) {
+                escaped.append(ch);
+            } else if (ch < 256) {
+                escaped.append("\\x").append(Integer.toHexString(ch));
+            } else {
+                escaped.append("\\u").append(String.format("%04x", (int) ch));
+            }
+        }
+        return escaped.toString();
+    }
+
+    private final static String XmlEscape(String unescaped) {
+        StringBuilder escaped = new StringBuilder();
+        for (int i = 0; i < unescaped.length(); i++) {
+            char ch = unescaped.charAt(i);
+            if (Character.isLetterOrDigit(ch) || ch == ' ') {
+                escaped.append(ch);
+            } else {
+                escaped.append("&#").append((int) ch).append(";");
+            }
+        }
+        return escaped.toString();
+    }
+
+    private final static String HtmlEscape(String unescaped) {
+        StringBuilder escaped = new StringBuilder();
+        for (int i = 0; i < unescaped.length(); i++) {
+            char ch = unescaped.charAt(i);
+            if (Character.isLetterOrDigit(ch) || ch == ' ') {
+                escaped.append(ch);
+            } else if (ch == '&') {
+                escaped.append("&amp;");
+            } else if (ch == '"') {
+                escaped.append("&quot;");
+            } else if (ch == '\r' || ch == '\n' || ch == '\t') {
+                escaped.append(ch);
+            } else {
+                escaped.append("&#").append((int) ch).append(";");
+            }
+        }
+        return escaped.toString();
+    }
+}
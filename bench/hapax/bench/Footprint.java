@@ -0,0 +1,139 @@
+/*
+ * Hapax2
+ * Copyright (c) 2007 Doug Coker
+ * Copyright (c) 2009 John Pritchard
+ *
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hapax.bench;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import hapax.TemplateDataDictionary;
+import hapax.TemplateDictionary;
+
+/**
+ * Retained heap per section row, by the number of variables in the row,
+ * against the previous layout of a dictionary with two linked hash maps.
+ * Names and values are shared by all rows, so that the size is that of the
+ * dictionary structure.
+ *
+ * <pre>
+ * java hapax.bench.Footprint [rows]
+ * </pre>
+ *
+ * @author jdp
+ */
+public final class Footprint {
+
+    /**
+     * Previous layout of a template dictionary.
+     */
+    private final static class Previous {
+
+        final LinkedHashMap<String, String> variables = new LinkedHashMap<String, String>();
+
+        final LinkedHashMap<String, List<Previous>> sections = new LinkedHashMap<String, List<Previous>>();
+
+        final Object parent;
+
+        Previous(Object parent) {
+            super();
+            this.parent = parent;
+        }
+    }
+
+    private final static int[] Shapes = { 0, 3, 8, 12 };
+
+    public static void main(String[] argv) {
+        try {
+            int rows = (0 < argv.length) ? Integer.parseInt(argv[0]) : 100000;
+            String[] names = new String[Shapes[Shapes.length - 1]];
+            String[] values = new String[names.length];
+            for (int cc = 0; cc < names.length; cc++) {
+                names[cc] = ("VAR_" + cc);
+                values[cc] = ("value " + cc);
+            }
+            System.out.println("variables   previous bytes/row   current bytes/row");
+            for (int shape : Shapes) {
+                long previous = Previous(rows, shape, names, values);
+                long current = Current(rows, shape, names, values);
+                System.out.println(String.format("%-9d %20d %19d", shape, (previous / rows),
+                    (current / rows)));
+            }
+        } catch (Exception exc) {
+            exc.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @return Bytes retained by the rows
+     */
+    private final static long Current(int rows, int shape, String[] names, String[] values) {
+        long before = Used();
+        TemplateDictionary dict = TemplateDictionary.create();
+        for (int row = 0; row < rows; row++) {
+            TemplateDataDictionary child = dict.addSection("ROW");
+            for (int cc = 0; cc < shape; cc++) {
+                child.setVariable(names[cc], values[cc]);
+            }
+        }
+        long after = Used();
+        if (rows != dict.getSection("ROW").size()) throw new IllegalStateException();
+        return (after - before);
+    }
+
+    /**
+     * @return Bytes retained by the rows
+     */
+    private final static long Previous(int rows, int shape, String[] names, String[] values) {
+        long before = Used();
+        Previous dict = new Previous(null);
+        List<Previous> list = new ArrayList<Previous>();
+        dict.sections.put("ROW", list);
+        for (int row = 0; row < rows; row++) {
+            Previous child = new Previous(dict);
+            for (int cc = 0; cc < shape; cc++) {
+                child.variables.put(names[cc], values[cc]);
+            }
+            list.add(child);
+        }
+        long after = Used();
+        if (rows != list.size()) throw new IllegalStateException();
+        return (after - before);
+    }
+
+    /**
+     * @return Bytes of heap in use after collection
+     */
+    private final static long Used() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for (int cc = 0; cc < 5; cc++) {
+            System.gc();
+            used = Math.min(used, (runtime.totalMemory() - runtime.freeMemory()));
+        }
+        return used;
+    }
+}
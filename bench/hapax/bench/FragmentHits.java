@@ -0,0 +1,245 @@
+/*
+ * Hapax2
+ * Copyright (c) 2007 Doug Coker
+ * Copyright (c) 2009 John Pritchard
+ *
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hapax.bench;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import hapax.FragmentCache;
+import hapax.FrozenTemplateDictionary;
+import hapax.Template;
+import hapax.TemplateDataDictionary;
+import hapax.TemplateDictionary;
+import hapax.TemplateException;
+import hapax.TemplateLoader;
+
+/**
+ * Checks that the fragment cache hits for dictionaries differing only in
+ * variables the fragment doesn't reference, including overlays of a frozen
+ * dictionary, and renders the same as without the cache. Exits with status
+ * one on a failed check.
+ *
+ * The page has an include fragment, a section fragment, and a section
+ * containing an include, which is not cached. The request variable is
+ * referenced by the page outside of the fragments. A section fragment served
+ * from the cache defines the iteration sections of its nested sections, as
+ * rendering it would have.
+ *
+ * <pre>
+ * java hapax.bench.FragmentHits
+ * </pre>
+ *
+ * @author jdp
+ */
+public final class FragmentHits {
+
+    /**
+     * Templates from strings.
+     */
+    private final static class Loader implements TemplateLoader {
+
+        private final Map<String, Template> templates = new HashMap<String, Template>();
+
+        private final FragmentCache fragments;
+
+        Loader(FragmentCache fragments) {
+            super();
+            this.fragments = fragments;
+        }
+
+        @Override
+        public String getTemplateDirectory() {
+            return "";
+        }
+
+        @Override
+        public Template getTemplate(String filename) throws TemplateException {
+            return this.getTemplate(this, filename);
+        }
+
+        @Override
+        public Template getTemplate(TemplateLoader context, String filename)
+            throws TemplateException {
+            Template template = this.templates.get(filename);
+            if (null == template) {
+                String source = Sources.get(filename);
+                if (null == source) throw new TemplateException(filename);
+                else {
+                    template = new Template(source, this);
+                    if (null != this.fragments) template.setFragmentCache(this.fragments);
+                    this.templates.put(filename, template);
+                }
+            }
+            return template;
+        }
+    }
+
+    private final static Map<String, String> Sources = new HashMap<String, String>();
+    static {
+        Sources.put("page", "H{{>NAV}}{{#BOX}}b{{X}}{{USER}}{{/BOX}}"
+            + "{{#WRAP}}w{{>NAV}}{{/WRAP}}|{{REQ}}");
+        Sources.put("nav", "<nav>{{USER}}{{#ITEM}}[{{I}}]{{/ITEM}}</nav>");
+        Sources.put("list", "{{#LIST}}({{#ITEM}}{{I}}{{/ITEM}}){{/LIST}}");
+    }
+
+    private static int Failed;
+
+    public static void main(String[] argv) {
+        try {
+            FragmentCache fragments = new FragmentCache(100, "nav", "BOX", "WRAP", "LIST");
+            Template page = new Loader(fragments).getTemplate("page");
+            Template uncached = new Loader(null).getTemplate("page");
+            /*
+             * Roots differing in an unreferenced variable
+             */
+            Check("first render", uncached.renderToString(Root("r1", "bob")), page
+                .renderToString(Root("r1", "bob")));
+            Check("first render misses", 2L, fragments.getMisses());
+            Check("first render hits", 1L, fragments.getHits());
+
+            Check("unreferenced variable", uncached.renderToString(Root("r2", "bob")), page
+                .renderToString(Root("r2", "bob")));
+            Check("unreferenced variable misses", 2L, fragments.getMisses());
+            Check("unreferenced variable hits", 4L, fragments.getHits());
+            /*
+             * Root differing in a referenced variable
+             */
+            Check("referenced variable", uncached.renderToString(Root("r3", "amy")), page
+                .renderToString(Root("r3", "amy")));
+            Check("referenced variable misses", 4L, fragments.getMisses());
+            /*
+             * Overlays of a frozen dictionary
+             */
+            TemplateDictionary base = TemplateDictionary.create();
+            Fill(base, "bob");
+            FrozenTemplateDictionary frozen = base.freeze();
+            fragments.resetStatistics();
+
+            Check("frozen overlay", uncached.renderToString(Overlay(frozen, "f1")), page
+                .renderToString(Overlay(frozen, "f1")));
+            Check("frozen overlay", uncached.renderToString(Overlay(frozen, "f2")), page
+                .renderToString(Overlay(frozen, "f2")));
+            Check("frozen overlay misses", 0L, fragments.getMisses());
+            Check("frozen overlay hits", 6L, fragments.getHits());
+            /*
+             * Nested iteration sections of a hit
+             */
+            Template list = new Loader(fragments).getTemplate("list");
+            Template listUncached = new Loader(null).getTemplate("list");
+            fragments.resetStatistics();
+
+            List<String> expected = new ArrayList<String>();
+            Check("nested section", "(01)", listUncached.renderToString(List(expected)));
+            list.renderToString(List(new ArrayList<String>()));
+            List<String> shown = new ArrayList<String>();
+            Check("nested section", "(01)", list.renderToString(List(shown)));
+            Check("nested section hits", 1L, fragments.getHits());
+            Check("nested iteration", expected, shown);
+        } catch (Exception exc) {
+            exc.printStackTrace();
+            System.exit(1);
+        }
+        if (0 < Failed) System.exit(1);
+        else
+            System.out.println("ok");
+    }
+
+    private final static TemplateDictionary Root(String request, String user) {
+        TemplateDictionary root = TemplateDictionary.create();
+        Fill(root, user);
+        return Request(root, request);
+    }
+
+    /**
+     * Section of a row having a section of two rows, recording the sections
+     * shown in rendering.
+     */
+    private final static TemplateDictionary List(List<String> shown) {
+        Shown root = new Shown(null, shown);
+        Shown row = new Shown(root, shown);
+        List<TemplateDataDictionary> items = new ArrayList<TemplateDataDictionary>();
+        for (int cc = 0; cc < 2; cc++) {
+            Shown item = new Shown(row, shown);
+            item.setVariable("I", String.valueOf(cc));
+            items.add(item);
+        }
+        row.define("ITEM", items);
+        List<TemplateDataDictionary> rows = new ArrayList<TemplateDataDictionary>();
+        rows.add(row);
+        root.define("LIST", rows);
+        return root;
+    }
+
+    private final static class Shown extends TemplateDictionary {
+
+        private final List<String> shown;
+
+        Shown(TemplateDataDictionary parent, List<String> shown) {
+            super(parent);
+            this.shown = shown;
+        }
+
+        void define(String sectionName, List<TemplateDataDictionary> section) {
+            this.sections.put(sectionName, section);
+        }
+
+        @Override
+        public List<TemplateDataDictionary> showSection(String sectionName) {
+            this.shown.add(sectionName);
+            return super.showSection(sectionName);
+        }
+    }
+
+    private final static TemplateDictionary Overlay(FrozenTemplateDictionary frozen,
+        String request) {
+        return Request(frozen.overlay(), request);
+    }
+
+    private final static void Fill(TemplateDictionary dict, String user) {
+        dict.setVariable("USER", user);
+        for (int cc = 0; cc < 3; cc++) {
+            dict.addSection("ITEM").setVariable("I", String.valueOf(cc));
+        }
+        dict.addSection("BOX").setVariable("X", "1");
+    }
+
+    private final static TemplateDictionary Request(TemplateDictionary dict, String request) {
+        dict.setVariable("REQ", request);
+        dict.addSection("NAV", "nav");
+        dict.addSection("WRAP");
+        return dict;
+    }
+
+    private final static void Check(String name, Object expected, Object actual) {
+        if (expected.equals(actual)) System.out.println(name + ": " + actual);
+        else {
+            Failed += 1;
+            System.out.println(name + ": expected " + expected + ", found " + actual);
+        }
+    }
+}
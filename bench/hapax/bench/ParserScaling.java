@@ -0,0 +1,126 @@
+/*
+ * Hapax2
+ * Copyright (c) 2007 Doug Coker
+ * Copyright (c) 2009 John Pritchard
+ *
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hapax.bench;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+import hapax.parser.CTemplateParser;
+import hapax.parser.TemplateNode;
+
+/**
+ * Parse time by template size, from 1 KB to 50 MB, to show that parsing is
+ * linear in the size of the template. The time per character should stay
+ * within a small factor over the range, where a quadratic parse grows with
+ * the size. Large sizes are slower per character for the memory they
+ * retain, so the collector time of the best run is reported with it, and
+ * the heap should be fixed (as by the <code>bench</code> target of the Ant
+ * build).
+ *
+ * <pre>
+ * java hapax.bench.ParserScaling [max bytes]
+ * </pre>
+ *
+ * @author jdp
+ */
+public final class ParserScaling {
+
+    /*
+     * Repeated template source, with text, variables, modifiers, sections
+     * and comments
+     */
+    private final static String Unit = "<tr class=\"row\">\n  <td>{{NAME:h}}</td><td>{{QTY}}</td>\n"
+        + "  {{#ITEM}}<span>{{ITEM_NAME:j}}</span>{{/ITEM}}{{! item list }}\n</tr>\n";
+
+    private final static int[] Sizes = { 1 << 10, 10 << 10, 100 << 10, 1 << 20, 10 << 20,
+        50 << 20 };
+
+    public static void main(String[] argv) {
+        try {
+            int max = (0 < argv.length) ? Integer.parseInt(argv[0]) : (50 << 20);
+            CTemplateParser parser = new CTemplateParser();
+            /*
+             * Warm up
+             */
+            String warm = Source(1 << 20);
+            for (int cc = 0; cc < 10; cc++) {
+                parser.parse(null, warm);
+            }
+            System.out.println("bytes       best ms      ns/char    gc ms    nodes");
+            for (int size : Sizes) {
+                if (size > max) break;
+                else {
+                    String source = Source(size);
+                    int runs = Math.max(3, (10 << 20) / size);
+                    runs = Math.min(runs, 1000);
+                    long best = Long.MAX_VALUE, bestCollected = 0L;
+                    int nodes = 0;
+                    System.gc();
+                    for (int cc = 0; cc < runs; cc++) {
+                        long collected = Collected();
+                        long start = System.nanoTime();
+                        List<TemplateNode> list = parser.parse(null, source);
+                        long time = (System.nanoTime() - start);
+                        if (time < best) {
+                            best = time;
+                            bestCollected = (Collected() - collected);
+                        }
+                        nodes = list.size();
+                    }
+                    System.out.println(String.format("%-10d %9.3f %12.2f %8d %8d", source
+                        .length(), (best / 1e6), ((double) best / source.length()),
+                        bestCollected, nodes));
+                }
+            }
+        } catch (Exception exc) {
+            exc.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @return Milliseconds of collection by all collectors
+     */
+    private final static long Collected() {
+        long time = 0L;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += Math.max(0L, collector.getCollectionTime());
+        }
+        return time;
+    }
+
+    /**
+     * @return Template source of about the size in characters
+     */
+    private final static String Source(int size) {
+        StringBuilder source = new StringBuilder(size + Unit.length());
+        while (source.length() < size) {
+            source.append(Unit);
+        }
+        return source.toString();
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Hapax2
+ * Copyright (c) 2007 Doug Coker
+ * Copyright (c) 2009 John Pritchard
+ *
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hapax.bench;
+
+import java.io.StringReader;
+import java.util.List;
+
+import hapax.Template;
+import hapax.TemplateDictionary;
+import hapax.parser.CTemplateParser;
+import hapax.parser.ParserReader;
+import hapax.parser.TemplateNode;
+import hapax.parser.TextNode;
+
+/**
+ * Checks that text parsed from a reader is not split between the halves of
+ * a surrogate pair at the edge of the reader window, after a run of open
+ * braces, and renders the same as from a string. Exits with status one on a
+ * failed check.
+ *
+ * <pre>
+ * java hapax.bench.SurrogateWindow
+ * </pre>
+ *
+ * @author jdp
+ */
+public final class SurrogateWindow {
+
+    private final static String Pair = "\ud83d\ude00";
+
+    public static void main(String[] argv) {
+        try {
+            int failed = 0;
+            CTemplateParser parser = new CTemplateParser();
+            int window = ParserReader.Window;
+            for (int pad = (window - 0x10); pad < (window + 0x10); pad++) {
+                StringBuilder source = new StringBuilder();
+                for (int cc = 0; cc < pad; cc++) {
+                    source.append('x');
+                }
+                source.append("{{{");
+                for (int cc = 0; cc < 0x1000; cc++) {
+                    source.append(Pair);
+                }
+                source.append("{{A}}");
+                String string = source.toString();
+
+                List<TemplateNode> nodes = parser.parse(null, new StringReader(string));
+                for (TemplateNode node : nodes) {
+                    if (node instanceof TextNode) {
+                        String text = ((TextNode) node).getText();
+                        if (0 < text.length()
+                            && Character.isHighSurrogate(text.charAt(text.length() - 1))) {
+                            failed += 1;
+                            System.out.println("split pair in text at pad " + pad);
+                        }
+                    }
+                }
+                TemplateDictionary dict = TemplateDictionary.create();
+                dict.setVariable("A", "a");
+                String streamed = new Template(0L, parser, new StringReader(string), null)
+                    .renderToString(dict);
+                dict = TemplateDictionary.create();
+                dict.setVariable("A", "a");
+                String buffered = new Template(parser, string, null).renderToString(dict);
+                if (!buffered.equals(streamed)) {
+                    failed += 1;
+                    System.out.println("rendered differently at pad " + pad);
+                }
+            }
+            if (0 < failed) System.exit(1);
+            else
+                System.out.println("ok");
+        } catch (Exception exc) {
+            exc.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
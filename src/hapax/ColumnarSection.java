@@ -0,0 +1,613 @@
+/*
+ * Hapax2
+ * Copyright (c) 2007 Doug Coker
+ * Copyright (c) 2009 John Pritchard
+ *
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hapax;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A section of rows sharing the same variables, stored as columns of
+ * strings or primitive values. Rows are not dictionaries until requested
+ * by {@link #get(int)}, and the {@link Template} renders the section by
+ * moving a single row cursor through the columns.
+ *
+ * <pre>
+ * ColumnarSection table = new ColumnarSection();
+ * ColumnarSection.StringColumn name = table.addStringColumn("NAME");
+ * ColumnarSection.IntColumn qty = table.addIntColumn("QTY");
+ * int row = table.addRow();
+ * name.set(row, "pen");
+ * qty.set(row, 3);
+ * dict.setSection("ROWS", table);
+ * </pre>
+ *
+ * A section defined in a dictionary is a view of the table under the
+ * dictionary, sharing its columns with the table, and with the clones of
+ * the dictionary. Freezing copies the columns. A dictionary having a
+ * columnar section has no fragment content, as the table may change.
+ *
+ * A string column value of null is not defined in the row, and inherited
+ * from the parent.
+ *
+ * @author jdp
+ */
+public final class ColumnarSection extends AbstractList<TemplateDataDictionary> {
+
+    /**
+     * Named column of the table.
+     */
+    public abstract static class Column {
+
+        public final String name;
+
+        Column(String name) {
+            super();
+            this.name = name;
+        }
+
+        abstract boolean has(int row);
+
+        abstract String format(int row);
+
+        abstract void capacity(int capacity);
+
+        abstract Column copy(int size);
+    }
+
+    public final static class StringColumn extends Column {
+
+        private String[] values;
+
+        StringColumn(String name, int capacity) {
+            super(name);
+            this.values = new String[capacity];
+        }
+
+        public String get(int row) {
+            return this.values[row];
+        }
+
+        public void set(int row, String value) {
+            this.values[row] = value;
+        }
+
+        @Override
+        boolean has(int row) {
+            return (null != this.values[row]);
+        }
+
+        @Override
+        String format(int row) {
+            return this.values[row];
+        }
+
+        @Override
+        void capacity(int capacity) {
+            String[] values = new String[capacity];
+            System.arraycopy(this.values, 0, values, 0, Math.min(capacity, this.values.length));
+            this.values = values;
+        }
+
+        @Override
+        Column copy(int size) {
+            StringColumn copy = new StringColumn(this.name, 0);
+            copy.values = new String[size];
+            System.arraycopy(this.values, 0, copy.values, 0, size);
+            return copy;
+        }
+    }
+
+    public final static class IntColumn extends Column {
+
+        private int[] values;
+
+        IntColumn(String name, int capacity) {
+            super(name);
+            this.values = new int[capacity];
+        }
+
+        public int get(int row) {
+            return this.values[row];
+        }
+
+        public void set(int row, int value) {
+            this.values[row] = value;
+        }
+
+        @Override
+        boolean has(int row) {
+            return true;
+        }
+
+        @Override
+        String format(int row) {
+            return String.valueOf(this.values[row]);
+        }
+
+        @Override
+        void capacity(int capacity) {
+            int[] values = new int[capacity];
+            System.arraycopy(this.values, 0, values, 0, Math.min(capacity, this.values.length));
+            this.values = values;
+        }
+
+        @Override
+        Column copy(int size) {
+            IntColumn copy = new IntColumn(this.name, 0);
+            copy.values = new int[size];
+            System.arraycopy(this.values, 0, copy.values, 0, size);
+            return copy;
+        }
+    }
+
+    public final static class LongColumn extends Column {
+
+        private long[] values;
+
+        LongColumn(String name, int capacity) {
+            super(name);
+            this.values = new long[capacity];
+        }
+
+        public long get(int row) {
+            return this.values[row];
+        }
+
+        public void set(int row, long value) {
+            this.values[row] = value;
+        }
+
+        @Override
+        boolean has(int row) {
+            return true;
+        }
+
+        @Override
+        String format(int row) {
+            return String.valueOf(this.values[row]);
+        }
+
+        @Override
+        void capacity(int capacity) {
+            long[] values = new long[capacity];
+            System.arraycopy(this.values, 0, values, 0, Math.min(capacity, this.values.length));
+            this.values = values;
+        }
+
+        @Override
+        Column copy(int size) {
+            LongColumn copy = new LongColumn(this.name, 0);
+            copy.values = new long[size];
+            System.arraycopy(this.values, 0, copy.values, 0, size);
+            return copy;
+        }
+    }
+
+    public final static class DoubleColumn extends Column {
+
+        private double[] values;
+
+        DoubleColumn(String name, int capacity) {
+            super(name);
+            this.values = new double[capacity];
+        }
+
+        public double get(int row) {
+            return this.values[row];
+        }
+
+        public void set(int row, double value) {
+            this.values[row] = value;
+        }
+
+        @Override
+        boolean has(int row) {
+            return true;
+        }
+
+        @Override
+        String format(int row) {
+            return String.valueOf(this.values[row]);
+        }
+
+        @Override
+        void capacity(int capacity) {
+            double[] values = new double[capacity];
+            System.arraycopy(this.values, 0, values, 0, Math.min(capacity, this.values.length));
+            this.values = values;
+        }
+
+        @Override
+        Column copy(int size) {
+            DoubleColumn copy = new DoubleColumn(this.name, 0);
+            copy.values = new double[size];
+            System.arraycopy(this.values, 0, copy.values, 0, size);
+            return copy;
+        }
+    }
+
+    /**
+     * Columns and rows shared by views.
+     */
+    private final static class Table {
+
+        Column[] columns = {};
+
+        int size;
+
+        int capacity;
+    }
+
+    private final Table table;
+
+    /*
+     * Parent of the rows
+     */
+    final TemplateDataDictionary parent;
+
+    public ColumnarSection() {
+        this(new Table(), null);
+    }
+
+    private ColumnarSection(Table table, TemplateDataDictionary parent) {
+        super();
+        this.table = table;
+        this.parent = parent;
+    }
+
+    public StringColumn addStringColumn(String name) {
+        return this.add(new StringColumn(name, this.table.capacity));
+    }
+
+    public IntColumn addIntColumn(String name) {
+        return this.add(new IntColumn(name, this.table.capacity));
+    }
+
+    public LongColumn addLongColumn(String name) {
+        return this.add(new LongColumn(name, this.table.capacity));
+    }
+
+    public DoubleColumn addDoubleColumn(String name) {
+        return this.add(new DoubleColumn(name, this.table.capacity));
+    }
+
+    private <C extends Column> C add(C column) {
+        if (null != this.getColumn(column.name))
+            throw new IllegalArgumentException(column.name);
+        else {
+            Table table = this.table;
+            int count = table.columns.length;
+            Column[] columns = new Column[count + 1];
+            System.arraycopy(table.columns, 0, columns, 0, count);
+            columns[count] = column;
+            table.columns = columns;
+            return column;
+        }
+    }
+
+    /**
+     * @return Column, or null
+     */
+    public Column getColumn(String name) {
+        for (Column column : this.table.columns) {
+            if (column.name.equals(name)) return column;
+        }
+        return null;
+    }
+
+    /**
+     * @return Index of a new row, having null strings and zero values
+     */
+    public int addRow() {
+        Table table = this.table;
+        int row = table.size;
+        if (row == table.capacity) {
+            int capacity = Math.max(16, (row + (row >> 1)));
+            for (Column column : table.columns) {
+                column.capacity(capacity);
+            }
+            table.capacity = capacity;
+        }
+        table.size = (row + 1);
+        return row;
+    }
+
+    @Override
+    public int size() {
+        return this.table.size;
+    }
+
+    /**
+     * @return Dictionary of the row
+     */
+    @Override
+    public TemplateDataDictionary get(int row) {
+        if (-1 < row && row < this.table.size) return new Row(this, row);
+        else
+            throw new IndexOutOfBoundsException(String.valueOf(row));
+    }
+
+    /**
+     * @return View of the table under the parent
+     */
+    ColumnarSection under(TemplateDataDictionary parent) {
+        return new ColumnarSection(this.table, parent);
+    }
+
+    /**
+     * @return Copy of the table under the parent
+     */
+    ColumnarSection copy(TemplateDataDictionary parent) {
+        Table table = this.table;
+        Table copy = new Table();
+        int count = table.columns.length;
+        copy.columns = new Column[count];
+        for (int cc = 0; cc < count; cc++) {
+            copy.columns[cc] = table.columns[cc].copy(table.size);
+        }
+        copy.size = table.size;
+        copy.capacity = table.size;
+        return new ColumnarSection(copy, parent);
+    }
+
+    /**
+     * @return Row dictionary to be moved through the rows
+     */
+    Row cursor() {
+        return new Row(this, 0);
+    }
+
+    /**
+     * Dictionary of a row, with variables and sections defined on it
+     * overlaying the columns.
+     */
+    final static class Row implements TemplateDataDictionary {
+
+        private final ColumnarSection section;
+
+        private int row;
+
+        private CompactMap<String, String> variables;
+
+        private CompactMap<String, List<TemplateDataDictionary>> sections;
+
+        /*
+         * Iteration sections shown in the row, and their sections retained
+         * for each row
+         */
+        private String[] shown;
+
+        private int shownCount;
+
+        private CompactMap<String, List<TemplateDataDictionary>> iterations;
+
+        Row(ColumnarSection section, int row) {
+            super();
+            this.section = section;
+            this.row = row;
+        }
+
+        /**
+         * Move the cursor to the row.
+         */
+        void move(int row) {
+            this.row = row;
+            this.variables = null;
+            this.sections = null;
+            this.shownCount = 0;
+        }
+
+        @Override
+        public TemplateDataDictionary getParent() {
+            return this.section.parent;
+        }
+
+        /**
+         * Column data is retained.
+         */
+        @Override
+        public void renderComplete() {
+            this.variables = null;
+            this.sections = null;
+            this.shownCount = 0;
+        }
+
+        @Override
+        public TemplateDataDictionary clone() {
+            return this.copy(this.section);
+        }
+
+        @Override
+        public TemplateDataDictionary clone(TemplateDataDictionary parent) {
+            if (null == parent) throw new IllegalStateException();
+            else if (parent == this.section.parent) return this.copy(this.section);
+            else
+                return this.copy(this.section.under(parent));
+        }
+
+        private Row copy(ColumnarSection section) {
+            Row clone = new Row(section, this.row);
+            if (null != this.variables)
+                clone.variables = new CompactMap<String, String>(this.variables);
+            if (null != this.sections) {
+                for (String name : this.sections.keySet()) {
+                    clone.define(name, TemplateDictionary.SectionClone(clone, this.sections
+                        .get(name)));
+                }
+            }
+            for (int cc = 0; cc < this.shownCount; cc++) {
+                clone.showSection(this.shown[cc]);
+            }
+            return clone;
+        }
+
+        @Override
+        public boolean hasVariable(String varName) {
+            if (null != this.variables && this.variables.containsKey(varName)) return true;
+            else {
+                Column column = this.section.getColumn(varName);
+                if (null != column && column.has(this.row)) return true;
+                else {
+                    TemplateDataDictionary parent = this.section.parent;
+                    return (null != parent && parent.hasVariable(varName));
+                }
+            }
+        }
+
+        @Override
+        public String getVariable(String varName) {
+            String value = null;
+            if (null != this.variables) value = this.variables.get(varName);
+            if (null == value) {
+                Column column = this.section.getColumn(varName);
+                if (null != column) value = column.format(this.row);
+            }
+            if (null != value) return value;
+            else {
+                TemplateDataDictionary parent = this.section.parent;
+                if (null != parent) return parent.getVariable(varName);
+                else
+                    return "";
+            }
+        }
+
+        @Override
+        public void setVariable(String varName, String value) {
+            if (null == this.variables) this.variables = new CompactMap<String, String>();
+
+            this.variables.put(varName, value);
+        }
+
+        @Override
+        public List<TemplateDataDictionary> getSection(String sectionName) {
+
+            List<TemplateDataDictionary> section = this.local(sectionName);
+            if (null != section) return section;
+            else {
+                /*
+                 * Inherit section
+                 */
+                TemplateDataDictionary parent = this.section.parent;
+                if (null != parent) {
+                    List<TemplateDataDictionary> ancestor = parent.getSection(sectionName);
+                    if (null != ancestor) {
+                        section = TemplateDictionary.Under(ancestor, this);
+                        if (null == section) {
+                            section = new ArrayList<TemplateDataDictionary>(ancestor.size());
+                            for (TemplateDataDictionary child : ancestor) {
+                                section.add(child.clone(this));
+                            }
+                        }
+                        return this.define(sectionName, section);
+                    }
+                }
+                /*
+                 * Synthesize section
+                 */
+                if (this.hasVariable(sectionName)) return this.define(sectionName, this.show());
+                else
+                    return null;
+            }
+        }
+
+        @Override
+        public List<TemplateDataDictionary> showSection(String sectionName) {
+
+            List<TemplateDataDictionary> section = this.local(sectionName);
+            if (null != section) return section;
+            else if (Iterator.IsIteration(sectionName)) {
+                /*
+                 * Shown in each row of the cursor without allocation
+                 */
+                if (null == this.iterations)
+                    this.iterations = new CompactMap<String, List<TemplateDataDictionary>>();
+
+                section = this.iterations.get(sectionName);
+                if (null == section) {
+                    section = Collections.unmodifiableList(this.show());
+                    this.iterations.put(sectionName, section);
+                }
+                if (null == this.shown) this.shown = new String[4];
+                else if (this.shownCount == this.shown.length) {
+                    String[] shown = new String[this.shownCount * 2];
+                    System.arraycopy(this.shown, 0, shown, 0, this.shownCount);
+                    this.shown = shown;
+                }
+                this.shown[this.shownCount++] = sectionName;
+                return section;
+            } else
+                return this.define(sectionName, this.show());
+        }
+
+        @Override
+        public TemplateDataDictionary addSection(String sectionName) {
+
+            TemplateDictionary add = new TemplateDictionary(this);
+
+            List<TemplateDataDictionary> section = null;
+            if (null != this.sections) section = this.sections.get(sectionName);
+            if (null == section)
+                section = this.define(sectionName, new ArrayList<TemplateDataDictionary>());
+            else if (section instanceof ColumnarSection) {
+                section = new ArrayList<TemplateDataDictionary>(section);
+                this.define(sectionName, section);
+            }
+            section.add(add);
+            return add;
+        }
+
+        /**
+         * @return Section defined in the row, or null
+         */
+        private List<TemplateDataDictionary> local(String sectionName) {
+            if (null != this.sections) {
+                List<TemplateDataDictionary> section = this.sections.get(sectionName);
+                if (null != section) return section;
+            }
+            for (int cc = 0; cc < this.shownCount; cc++) {
+                if (this.shown[cc].equals(sectionName)) return this.iterations.get(sectionName);
+            }
+            return null;
+        }
+
+        private List<TemplateDataDictionary> define(String sectionName,
+            List<TemplateDataDictionary> section) {
+            if (null == this.sections)
+                this.sections = new CompactMap<String, List<TemplateDataDictionary>>();
+
+            this.sections.put(sectionName, section);
+            return section;
+        }
+
+        private List<TemplateDataDictionary> show() {
+            List<TemplateDataDictionary> section = new ArrayList<TemplateDataDictionary>(1);
+            section.add(new TemplateDictionary(this));
+            return section;
+        }
+    }
+}
@@ -0,0 +1,349 @@
+/*
+ * Hapax2
+ * Copyright (c) 2007 Doug Coker
+ * Copyright (c) 2009 John Pritchard
+ *
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hapax;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A small map in insertion order for dictionaries, with keys and values in
+ * arrays allocated on first use. Lookup is a linear scan of a few keys, and
+ * an open addressing index of the arrays past a threshold.
+ *
+ * Modification in iteration is not detected, except by the iterator.
+ *
+ * @author jdp
+ */
+public final class CompactMap<K, V> extends AbstractMap<K, V> {
+
+    /*
+     * Size searched by linear scan
+     */
+    private final static int Linear = 8;
+
+    private final static int Initial = 4;
+
+    private Object[] keys;
+
+    private Object[] values;
+
+    private int size;
+
+    /*
+     * Positions plus one by hash, past the linear threshold
+     */
+    private int[] index;
+
+    private Set<Map.Entry<K, V>> entries;
+
+    public CompactMap() {
+        super();
+    }
+
+    public CompactMap(Map<? extends K, ? extends V> map) {
+        super();
+        this.putAll(map);
+    }
+
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return (0 == this.size);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return (-1 < this.find(key));
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        int at = this.find(key);
+        if (-1 < at) return (V) this.values[at];
+        else
+            return null;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V put(K key, V value) {
+        int at = this.find(key);
+        if (-1 < at) {
+            V old = (V) this.values[at];
+            this.values[at] = value;
+            return old;
+        } else {
+            int size = this.size;
+            if (null == this.keys) {
+                this.keys = new Object[Initial];
+                this.values = new Object[Initial];
+            } else if (size == this.keys.length) {
+                Object[] keys = new Object[size * 2];
+                Object[] values = new Object[size * 2];
+                System.arraycopy(this.keys, 0, keys, 0, size);
+                System.arraycopy(this.values, 0, values, 0, size);
+                this.keys = keys;
+                this.values = values;
+            }
+            this.keys[size] = key;
+            this.values[size] = value;
+            this.size = (size + 1);
+
+            if (null != this.index && (size + 1) * 2 <= this.index.length) this.indexed(size);
+            else if (Linear < size + 1) this.reindex();
+
+            return null;
+        }
+    }
+
+    @Override
+    public V remove(Object key) {
+        int at = this.find(key);
+        if (-1 < at) return this.removeAt(at);
+        else
+            return null;
+    }
+
+    @Override
+    public void clear() {
+        this.keys = null;
+        this.values = null;
+        this.size = 0;
+        this.index = null;
+    }
+
+    @Override
+    public Set<Map.Entry<K, V>> entrySet() {
+        Set<Map.Entry<K, V>> entries = this.entries;
+        if (null == entries) {
+            entries = new Entries();
+            this.entries = entries;
+        }
+        return entries;
+    }
+
+    /**
+     * @return Position of the key, or negative one
+     */
+    private int find(Object key) {
+        Object[] keys = this.keys;
+        int[] index = this.index;
+        if (null == index) {
+            for (int cc = 0, size = this.size; cc < size; cc++) {
+                if (Eq(key, keys[cc])) return cc;
+            }
+            return -1;
+        } else {
+            int mask = (index.length - 1);
+            for (int slot = (Spread(key) & mask);; slot = ((slot + 1) & mask)) {
+                int at = index[slot];
+                if (0 == at) return -1;
+                else if (Eq(key, keys[at - 1])) return (at - 1);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private V removeAt(int at) {
+        V old = (V) this.values[at];
+        int size = (this.size - 1);
+        System.arraycopy(this.keys, at + 1, this.keys, at, size - at);
+        System.arraycopy(this.values, at + 1, this.values, at, size - at);
+        this.keys[size] = null;
+        this.values[size] = null;
+        this.size = size;
+        if (null != this.index) {
+            if (Linear < size) this.reindex();
+            else
+                this.index = null;
+        }
+        return old;
+    }
+
+    /**
+     * Index the positions at two to four times the size.
+     */
+    private void reindex() {
+        int capacity = Initial;
+        while (capacity < this.size * 2) {
+            capacity <<= 1;
+        }
+        this.index = new int[capacity];
+        for (int at = 0, size = this.size; at < size; at++) {
+            this.indexed(at);
+        }
+    }
+
+    private void indexed(int at) {
+        int[] index = this.index;
+        int mask = (index.length - 1);
+        int slot = (Spread(this.keys[at]) & mask);
+        while (0 != index[slot]) {
+            slot = ((slot + 1) & mask);
+        }
+        index[slot] = (at + 1);
+    }
+
+    private final static int Spread(Object key) {
+        if (null == key) return 0;
+        else {
+            int hash = key.hashCode();
+            return (hash ^ (hash >>> 16));
+        }
+    }
+
+    private final static boolean Eq(Object a, Object b) {
+        return (a == b || (null != a && a.equals(b)));
+    }
+
+    private final class Entries extends AbstractSet<Map.Entry<K, V>> {
+
+        @Override
+        public int size() {
+            return CompactMap.this.size;
+        }
+
+        @Override
+        public Iterator<Map.Entry<K, V>> iterator() {
+            return new Iterator<Map.Entry<K, V>>() {
+
+                private int next;
+
+                private boolean removable;
+
+                public boolean hasNext() {
+                    return (this.next < CompactMap.this.size);
+                }
+
+                public Map.Entry<K, V> next() {
+                    if (this.next < CompactMap.this.size) {
+                        this.removable = true;
+                        return new Entry(this.next++);
+                    } else
+                        throw new NoSuchElementException();
+                }
+
+                public void remove() {
+                    if (this.removable) {
+                        this.removable = false;
+                        CompactMap.this.removeAt(--this.next);
+                    } else
+                        throw new IllegalStateException();
+                }
+            };
+        }
+    }
+
+    /**
+     * Entry of a key, found at its position when read or written. Removals
+     * shift the positions of the following keys, so a moved key is found
+     * again, and an entry whose key was removed keeps its last value apart
+     * from the map, as the entries of {@link java.util.HashMap}.
+     */
+    private final class Entry implements Map.Entry<K, V> {
+
+        private final K key;
+
+        private int at;
+
+        private V value;
+
+        @SuppressWarnings("unchecked")
+        Entry(int at) {
+            super();
+            this.key = (K) CompactMap.this.keys[at];
+            this.at = at;
+            this.value = (V) CompactMap.this.values[at];
+        }
+
+        /**
+         * @return Position of the key, or negative one for a removed key
+         */
+        private int at() {
+            int at = this.at;
+            if (at < CompactMap.this.size && Eq(this.key, CompactMap.this.keys[at])) return at;
+            else {
+                at = CompactMap.this.find(this.key);
+                if (-1 < at) this.at = at;
+                return at;
+            }
+        }
+
+        public K getKey() {
+            return this.key;
+        }
+
+        @SuppressWarnings("unchecked")
+        public V getValue() {
+            int at = this.at();
+            if (-1 < at) this.value = (V) CompactMap.this.values[at];
+            return this.value;
+        }
+
+        @SuppressWarnings("unchecked")
+        public V setValue(V value) {
+            V old;
+            int at = this.at();
+            if (-1 < at) {
+                old = (V) CompactMap.this.values[at];
+                CompactMap.this.values[at] = value;
+            } else
+                old = this.value;
+            this.value = value;
+            return old;
+        }
+
+        @Override
+        public boolean equals(Object that) {
+            if (that instanceof Map.Entry) {
+                Map.Entry<?, ?> entry = (Map.Entry<?, ?>) that;
+                return (Eq(this.getKey(), entry.getKey()) && Eq(this.getValue(), entry
+                    .getValue()));
+            } else
+                return false;
+        }
+
+        @Override
+        public int hashCode() {
+            Object key = this.getKey(), value = this.getValue();
+            return ((null == key) ? 0 : key.hashCode()) ^ ((null == value) ? 0 : value.hashCode());
+        }
+
+        @Override
+        public String toString() {
+            return this.getKey() + "=" + this.getValue();
+        }
+    }
+}
@@ -0,0 +1,483 @@
+/*
+ * Hapax2
+ * Copyright (c) 2007 Doug Coker
+ * Copyright (c) 2009 John Pritchard
+ *
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hapax;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import hapax.parser.SectionNode;
+import hapax.parser.TemplateNode;
+
+/**
+ * Bounded least recently used cache of rendered fragments, shared across
+ * threads. A fragment is the output of a section or include, identified by
+ * its template and version, its node in the template, and the
+ * {@link #Content content} of the data it references.
+ *
+ * Caching is opted in by section or included template name, and applies to
+ * the templates given this cache by {@link Template#setFragmentCache} or
+ * {@link TemplateCache#setFragmentCache}. The template cache invalidates the
+ * fragments of a template when it reloads the template. Fragments including
+ * other templates are not cached, as they depend on the included templates.
+ *
+ * @author jdp
+ */
+public class FragmentCache {
+
+    /**
+     * The data referenced by a fragment is the variable and section of its
+     * name, and of each of its references, resolved through the parent chain
+     * of the dictionary. The rows of a referenced section contribute their own
+     * variables and sections of the references, excepting the iteration
+     * sections defined in rendering, and so on through nested rows. Data not
+     * referenced, as per request values used elsewhere in the page, doesn't
+     * change the content.
+     *
+     * @param name
+     *            Section or include name
+     * @param references
+     *            Names referenced by the section body or included template,
+     *            from {@link hapax.parser.TemplateNode#References}
+     * @return The names and values of the data referenced by the fragment,
+     *         encoded so that different data has different content, or null
+     *         for references of null, or when the data includes dictionaries
+     *         other than {@link TemplateDictionary} and
+     *         {@link FrozenTemplateDictionary}, suppliers evaluated by each
+     *         request, or columnar or streaming sections.
+     */
+    public final static String Content(TemplateDataDictionary dict, String name,
+        String[] references) {
+        if (null == references) return null;
+        else {
+            StringBuilder content = new StringBuilder();
+            if (Opaque == Resolve(dict, name, references, content)) return null;
+            else {
+                for (String reference : references) {
+                    if (Opaque == Resolve(dict, reference, references, content)) return null;
+                }
+                return content.toString();
+            }
+        }
+    }
+
+    /**
+     * @return A 64 bit hash of the {@link #Content content} of the fragment,
+     *         or zero for no content
+     */
+    public final static long Fingerprint(TemplateDataDictionary dict, String name,
+        String[] references) {
+        String content = Content(dict, name, references);
+        if (null == content) return 0L;
+        else
+            return Defined(Hash(Seed, content));
+    }
+
+    /**
+     * Change the data of a section served from the cache as rendering the
+     * section would have. Iteration sections are defined in the rows of the
+     * section, or in the dictionary for a section without rows, and so on for
+     * the sections nested in the body of the section.
+     */
+    public final static void Hit(TemplateDataDictionary dict, String name,
+        List<TemplateDataDictionary> section, SectionNode fragment) {
+
+        if (!fragment.isConstant()) Hit(dict, name, section, fragment.getChildren(), false);
+    }
+
+    /**
+     * Change the data of an include served from the cache as rendering the
+     * included template would have. Iteration sections are defined as for a
+     * section, and the rendered dictionaries are completed.
+     */
+    public final static void Hit(TemplateDataDictionary dict, String name,
+        List<TemplateDataDictionary> section, Template fragment) {
+
+        Hit(dict, name, section, fragment.getNodes(), true);
+    }
+
+    private final static void Hit(TemplateDataDictionary dict, String name,
+        List<TemplateDataDictionary> section, TemplateNode[] body, boolean complete) {
+
+        if (section.size() == 0) {
+
+            Iterator.Define(dict, name, 0, 1);
+
+            Hit(dict, body);
+
+            if (complete) dict.renderComplete();
+        } else {
+            for (int cc = 0, count = section.size(); cc < count; cc++) {
+
+                TemplateDataDictionary child = section.get(cc);
+
+                Iterator.Define(child, name, cc, count);
+
+                Hit(child, body);
+
+                if (complete) child.renderComplete();
+            }
+        }
+    }
+
+    /**
+     * Define the iteration sections of the sections in the body, as rendering
+     * the body in the dictionary would have.
+     */
+    private final static void Hit(TemplateDataDictionary dict, TemplateNode[] body) {
+        for (TemplateNode node : body) {
+
+            if (node instanceof SectionNode && !((SectionNode) node).isConstant()) {
+
+                SectionNode nested = (SectionNode) node;
+                String name = nested.getSectionName();
+
+                List<TemplateDataDictionary> section;
+                if (dict instanceof SlotDictionary && -1 < nested.getSectionSlot())
+                    section = ((SlotDictionary) dict).getSection(nested.getSectionSlot());
+                else
+                    section = dict.getSection(name);
+
+                if (null != section) Hit(dict, name, section, nested.getChildren(), false);
+            }
+        }
+    }
+
+    /**
+     * Data not defined by a dictionary
+     */
+    final static int Undefined = 0;
+
+    /**
+     * Data without content
+     */
+    final static int Opaque = 1;
+
+    final static int Defined = 2;
+
+    /**
+     * @return Hash distinct from zero
+     */
+    final static long Defined(long hash) {
+        return (0L == hash) ? 2L : hash;
+    }
+
+    /**
+     * Append the name and the variable and section of the name, each defined
+     * by the dictionary or its nearest ancestor.
+     *
+     * @return Defined or opaque
+     */
+    private final static int Resolve(TemplateDataDictionary dict, String name,
+        String[] references, StringBuilder content) {
+        Text(content, name);
+        int variable = Undefined;
+        for (TemplateDataDictionary d = dict; null != d && Undefined == variable; d = d
+            .getParent()) {
+            variable = Variable(d, name, content);
+        }
+        if (Opaque == variable) return Opaque;
+        else if (Undefined == variable) content.append('u');
+
+        int section = Undefined;
+        for (TemplateDataDictionary d = dict; null != d && Undefined == section; d = d
+            .getParent()) {
+            section = Section(d, name, references, content);
+        }
+        if (Opaque == section) return Opaque;
+        else if (Undefined == section) content.append('u');
+
+        return Defined;
+    }
+
+    /**
+     * Append the rows of a section with the references of each, as defined by
+     * the row.
+     *
+     * @return Defined, undefined or opaque
+     */
+    final static int Rows(List<TemplateDataDictionary> section, String[] references,
+        StringBuilder content) {
+        if (null == section) return Undefined;
+        else if (section instanceof ColumnarSection || section instanceof StreamingSection)
+            return Opaque;
+        else {
+            content.append('r').append(section.size()).append(':');
+            for (TemplateDataDictionary row : section) {
+                for (String name : references) {
+                    if (!Iterator.IsIteration(name)) {
+                        Text(content, name);
+                        int variable = Variable(row, name, content);
+                        if (Opaque == variable) return Opaque;
+                        else if (Undefined == variable) content.append('u');
+
+                        int rows = Section(row, name, references, content);
+                        if (Opaque == rows) return Opaque;
+                        else if (Undefined == rows) content.append('u');
+                    }
+                }
+            }
+            return Defined;
+        }
+    }
+
+    /**
+     * Append the value of a variable.
+     *
+     * @return Defined
+     */
+    final static int Value(StringBuilder content, String value) {
+        content.append('v');
+        Text(content, value);
+        return Defined;
+    }
+
+    /**
+     * Length prefixed string, or "n" for null
+     */
+    private final static void Text(StringBuilder content, String string) {
+        if (null == string) content.append('n');
+        else
+            content.append(string.length()).append(':').append(string);
+    }
+
+    private final static int Variable(TemplateDataDictionary dict, String name,
+        StringBuilder content) {
+        if (dict instanceof TemplateDictionary) return ((TemplateDictionary) dict)
+            .contentVariable(name, content);
+        else if (dict instanceof FrozenTemplateDictionary)
+            return ((FrozenTemplateDictionary) dict).contentVariable(name, content);
+        else
+            return Opaque;
+    }
+
+    private final static int Section(TemplateDataDictionary dict, String name,
+        String[] references, StringBuilder content) {
+        if (dict instanceof TemplateDictionary) return ((TemplateDictionary) dict)
+            .contentSection(name, references, content);
+        else if (dict instanceof FrozenTemplateDictionary)
+            return ((FrozenTemplateDictionary) dict).contentSection(name, references, content);
+        else
+            return Opaque;
+    }
+
+    final static long Seed = 0xcbf29ce484222325L;
+
+    private final static long Prime = 0x100000001b3L;
+
+    /**
+     * FNV-1a string hash.
+     */
+    final static long Hash(long hash, String string) {
+        if (null == string) hash = ((hash ^ 0xFFFFFFFFL) * Prime);
+        else {
+            for (int cc = 0, count = string.length(); cc < count; cc++) {
+                hash = ((hash ^ string.charAt(cc)) * Prime);
+            }
+            hash = ((hash ^ string.length()) * Prime);
+        }
+        return hash;
+    }
+
+    /**
+     * Avalanche, as the MurmurHash3 finalizer.
+     */
+    final static long Finish(long hash) {
+        hash ^= (hash >>> 33);
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= (hash >>> 33);
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= (hash >>> 33);
+        return hash;
+    }
+
+    /**
+     * Fragment identity, with the content of the data it references, so that
+     * fragments of different data are never confused.
+     */
+    public final static class Key {
+
+        public final Template template;
+
+        public final long version;
+
+        public final Object fragment;
+
+        public final String content;
+
+        private final int hashCode;
+
+        public Key(Template template, Object fragment, String content) {
+            super();
+            if (null != template && null != fragment && null != content) {
+                this.template = template;
+                this.version = template.getLastModified();
+                this.fragment = fragment;
+                this.content = content;
+                this.hashCode = (int) Finish(Hash(Seed, content)
+                    ^ System.identityHashCode(template) ^ (31L * fragment.hashCode()));
+            } else
+                throw new IllegalArgumentException();
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hashCode;
+        }
+
+        @Override
+        public boolean equals(Object that) {
+            if (this == that) return true;
+            else if (that instanceof Key) {
+                Key key = (Key) that;
+                return (this.hashCode == key.hashCode && this.template == key.template
+                    && this.version == key.version && this.fragment.equals(key.fragment)
+                    && this.content.equals(key.content));
+            } else
+                return false;
+        }
+    }
+
+    private final int capacity;
+
+    private final Set<String> names;
+
+    private final LinkedHashMap<Key, String> cache;
+
+    private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong(),
+        evictions = new AtomicLong();
+
+    /**
+     * @param capacity
+     *            Maximum number of fragments
+     * @param names
+     *            Section names and included template names to cache
+     */
+    public FragmentCache(int capacity, String... names) {
+        super();
+        if (0 < capacity) {
+            this.capacity = capacity;
+            this.names = new HashSet<String>();
+            for (String name : names) {
+                this.names.add(name);
+            }
+            this.cache = new LinkedHashMap<Key, String>(16, 0.75f, true) {
+
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Key, String> eldest) {
+                    if (this.size() > FragmentCache.this.capacity) {
+                        FragmentCache.this.evictions.incrementAndGet();
+                        return true;
+                    } else
+                        return false;
+                }
+            };
+        } else
+            throw new IllegalArgumentException();
+    }
+
+    public int getCapacity() {
+        return this.capacity;
+    }
+
+    /**
+     * @return The section or include is cached.
+     */
+    public boolean accept(String name) {
+        return this.names.contains(name);
+    }
+
+    /**
+     * @param content
+     *            Content of the data referenced by the fragment
+     * @return Cached fragment, or null
+     */
+    public String get(Template template, Object fragment, String content) {
+        Key key = new Key(template, fragment, content);
+        String value;
+        synchronized (this.cache) {
+            value = this.cache.get(key);
+        }
+        if (null != value) this.hits.incrementAndGet();
+        else
+            this.misses.incrementAndGet();
+        return value;
+    }
+
+    public void put(Template template, Object fragment, String content, String value) {
+        Key key = new Key(template, fragment, content);
+        synchronized (this.cache) {
+            this.cache.put(key, value);
+        }
+    }
+
+    /**
+     * Drop the fragments of the template.
+     */
+    public void invalidate(Template template) {
+        synchronized (this.cache) {
+            java.util.Iterator<Key> keys = this.cache.keySet().iterator();
+            while (keys.hasNext()) {
+                if (template == keys.next().template) keys.remove();
+            }
+        }
+    }
+
+    public void clear() {
+        synchronized (this.cache) {
+            this.cache.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (this.cache) {
+            return this.cache.size();
+        }
+    }
+
+    public long getHits() {
+        return this.hits.get();
+    }
+
+    public long getMisses() {
+        return this.misses.get();
+    }
+
+    public long getEvictions() {
+        return this.evictions.get();
+    }
+
+    public void resetStatistics() {
+        this.hits.set(0L);
+        this.misses.set(0L);
+        this.evictions.set(0L);
+    }
+}
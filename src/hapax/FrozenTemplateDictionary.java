@@ -0,0 +1,351 @@
+/*
+ * Hapax2
+ * Copyright (c) 2007 Doug Coker
+ * Copyright (c) 2009 John Pritchard
+ *
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hapax;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Immutable data dictionary from {@link TemplateDictionary#freeze()}, shared
+ * by concurrent renderings and retained across them. Rendering completion
+ * has no effect.
+ *
+ * Sections inherited or synthesized, and the iteration sections defined in
+ * rendering, are derived on first use and retained. Rendering the same
+ * dictionary in any order derives the same sections. A child inheriting a
+ * section, or a frozen dictionary {@link #clone(TemplateDataDictionary)
+ * cloned} under another parent, sees its data through views that share the
+ * data of the original.
+ *
+ * Data for a rendering is defined in an {@link #overlay() overlay}, a
+ * mutable dictionary over the frozen dictionary.
+ *
+ * @author jdp
+ */
+public final class FrozenTemplateDictionary
+
+    implements TemplateDataDictionary {
+
+    private final Map<String, String> variables;
+
+    /*
+     * Children of the original dictionary
+     */
+    private final Map<String, List<TemplateDataDictionary>> sections;
+
+    private final TemplateDataDictionary parent;
+
+    /*
+     * View of an original dictionary under another parent
+     */
+    private final boolean view;
+
+    /*
+     * Sections derived from the original, from ancestors, or in rendering,
+     * created on first use
+     */
+    private volatile ConcurrentMap<String, List<TemplateDataDictionary>> derived;
+
+    /**
+     * Frozen copy of the dictionary and its sections, with suppliers
+     * evaluated.
+     */
+    FrozenTemplateDictionary(TemplateDictionary source, FrozenTemplateDictionary parent) {
+        super();
+        this.variables = new HashMap<String, String>(source.variables());
+        this.sections = new HashMap<String, List<TemplateDataDictionary>>();
+        this.parent = parent;
+        this.view = false;
+
+        for (Map.Entry<String, List<TemplateDataDictionary>> entry : source.sections()
+            .entrySet()) {
+            String name = entry.getKey();
+            List<TemplateDataDictionary> section = entry.getValue();
+            if (TemplateDictionary.IsSupplied(section)) section = source.local(name);
+            /*
+             * Derived and iteration sections are derived again
+             */
+            if (section instanceof ColumnarSection)
+                this.sections.put(name, ((ColumnarSection) section).copy(this));
+
+            else if (section instanceof StreamingSection)
+                throw new IllegalArgumentException("Streaming section " + name);
+
+            else if (!(null == section || TemplateDictionary.IsDerived(section) || Iterator
+                .IsIteration(name))) {
+
+                List<TemplateDataDictionary> copy = new ArrayList<TemplateDataDictionary>(section
+                    .size());
+                for (TemplateDataDictionary child : section) {
+                    if (child instanceof TemplateDictionary)
+                        copy.add(new FrozenTemplateDictionary((TemplateDictionary) child, this));
+                    else if (child instanceof FrozenTemplateDictionary) copy.add(child.clone(this));
+                    else
+                        throw new IllegalArgumentException(child.getClass().getName());
+                }
+                this.sections.put(name, Collections.unmodifiableList(copy));
+            }
+        }
+    }
+
+    /**
+     * Empty dictionary.
+     */
+    private FrozenTemplateDictionary(TemplateDataDictionary parent) {
+        super();
+        this.variables = Collections.emptyMap();
+        this.sections = Collections.emptyMap();
+        this.parent = parent;
+        this.view = false;
+    }
+
+    /**
+     * View of the original under the parent.
+     */
+    private FrozenTemplateDictionary(FrozenTemplateDictionary original,
+        TemplateDataDictionary parent) {
+        super();
+        this.variables = original.variables;
+        this.sections = original.sections;
+        this.parent = parent;
+        this.view = true;
+    }
+
+    /**
+     * @return New mutable dictionary inheriting from this one
+     */
+    public TemplateDictionary overlay() {
+        return new TemplateDictionary(this);
+    }
+
+    @Override
+    public TemplateDataDictionary getParent() {
+        return this.parent;
+    }
+
+    /**
+     * Frozen data is retained.
+     */
+    @Override
+    public void renderComplete() {
+    }
+
+    /**
+     * @return This immutable dictionary
+     */
+    @Override
+    public TemplateDataDictionary clone() {
+        return this;
+    }
+
+    /**
+     * @return View of this dictionary under the parent
+     */
+    @Override
+    public TemplateDataDictionary clone(TemplateDataDictionary parent) {
+        if (null == parent) throw new IllegalStateException();
+        else if (parent == this.parent) return this;
+        else
+            return new FrozenTemplateDictionary(this, parent);
+    }
+
+    @Override
+    public boolean hasVariable(String varName) {
+
+        if (this.variables.containsKey(varName)) return true;
+        else if (null != this.parent) return this.parent.hasVariable(varName);
+        else
+            return false;
+    }
+
+    @Override
+    public String getVariable(String varName) {
+
+        String value = this.variables.get(varName);
+        if (null != value) return value;
+        else if (null != this.parent) return this.parent.getVariable(varName);
+        else
+            return "";
+    }
+
+    /**
+     * Append the variable defined here, as by {@link FragmentCache#Content}.
+     *
+     * @return Defined or undefined
+     */
+    final int contentVariable(String varName, StringBuilder content) {
+        String value = this.variables.get(varName);
+        if (null != value) return FragmentCache.Value(content, value);
+        else
+            return FragmentCache.Undefined;
+    }
+
+    /**
+     * @exception UnsupportedOperationException
+     *                Frozen dictionary
+     */
+    @Override
+    public void setVariable(String varName, String value) {
+        throw new UnsupportedOperationException("Frozen dictionary");
+    }
+
+    /**
+     * @return a list of TemplateDictionaries that iterate the section, or null
+     *         for a section not visible.
+     */
+    @Override
+    public List<TemplateDataDictionary> getSection(String sectionName) {
+
+        List<TemplateDataDictionary> section = this.sections.get(sectionName);
+        if (null != section && (!this.view)) return section;
+        else {
+            ConcurrentMap<String, List<TemplateDataDictionary>> derived = this.derived;
+            if (null != derived) {
+                List<TemplateDataDictionary> list = derived.get(sectionName);
+                if (null != list) return list;
+            }
+            /*
+             * Section of the original
+             */
+            if (null != section) return this.derive(sectionName, Views(this, section));
+            /*
+             * Inherit section
+             */
+            TemplateDataDictionary parent = this.parent;
+            if (null != parent) {
+                List<TemplateDataDictionary> ancestor = parent.getSection(sectionName);
+                if (null != ancestor) return this.derive(sectionName, Views(this, ancestor));
+            }
+            /*
+             * Synthesize section
+             */
+            if (this.hasVariable(sectionName)) return this.derive(sectionName, this.show());
+            else
+                return null;
+        }
+    }
+
+    /**
+     * Append the section defined or derived here, with the references of its
+     * rows, as by {@link FragmentCache#Content}.
+     *
+     * @return Defined, undefined or opaque
+     */
+    final int contentSection(String sectionName, String[] references, StringBuilder content) {
+        List<TemplateDataDictionary> section = null;
+        ConcurrentMap<String, List<TemplateDataDictionary>> derived = this.derived;
+        if (null != derived) section = derived.get(sectionName);
+        /*
+         * Views of a section of the original share its rows
+         */
+        if (null == section) section = this.sections.get(sectionName);
+
+        return FragmentCache.Rows(section, references, content);
+    }
+
+    /**
+     * Iteration sections are defined in rendering.
+     *
+     * @exception UnsupportedOperationException
+     *                Frozen dictionary, for a section not defined
+     */
+    @Override
+    public List<TemplateDataDictionary> showSection(String sectionName) {
+
+        if (this.sections.containsKey(sectionName)) return this.getSection(sectionName);
+        else {
+            ConcurrentMap<String, List<TemplateDataDictionary>> derived = this.derived;
+            if (null != derived) {
+                List<TemplateDataDictionary> list = derived.get(sectionName);
+                if (null != list) return list;
+            }
+            if (Iterator.IsIteration(sectionName)) return this.derive(sectionName, this.show());
+            else
+                throw new UnsupportedOperationException("Frozen dictionary");
+        }
+    }
+
+    /**
+     * @exception UnsupportedOperationException
+     *                Frozen dictionary
+     */
+    @Override
+    public TemplateDataDictionary addSection(String sectionName) {
+        throw new UnsupportedOperationException("Frozen dictionary");
+    }
+
+    /**
+     * @return Section shown once
+     */
+    private List<TemplateDataDictionary> show() {
+        TemplateDataDictionary show = new FrozenTemplateDictionary(this);
+        return Collections.singletonList(show);
+    }
+
+    /**
+     * @return Section derived first
+     */
+    private List<TemplateDataDictionary> derive(String sectionName,
+        List<TemplateDataDictionary> section) {
+
+        ConcurrentMap<String, List<TemplateDataDictionary>> derived = this.derived;
+        if (null == derived) {
+            synchronized (this) {
+                derived = this.derived;
+                if (null == derived) {
+                    derived = new ConcurrentHashMap<String, List<TemplateDataDictionary>>(8,
+                        0.75f, 1);
+                    this.derived = derived;
+                }
+            }
+        }
+        List<TemplateDataDictionary> existing = derived.putIfAbsent(sectionName, section);
+        if (null != existing) return existing;
+        else
+            return section;
+    }
+
+    /**
+     * @return Section iterating children of the parent
+     */
+    private final static List<TemplateDataDictionary> Views(TemplateDataDictionary parent,
+        List<TemplateDataDictionary> section) {
+
+        List<TemplateDataDictionary> shared = TemplateDictionary.Under(section, parent);
+        if (null != shared) return shared;
+
+        List<TemplateDataDictionary> views = new ArrayList<TemplateDataDictionary>(section.size());
+        for (TemplateDataDictionary child : section) {
+            views.add(child.clone(parent));
+        }
+        return Collections.unmodifiableList(views);
+    }
+}
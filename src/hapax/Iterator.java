@@ -53,6 +53,15 @@ public class Iterator {
         public final static String Exclusive = "_it_Exclusive";
     }
 
+    /**
+     * @return The section name has an iteration suffix.
+     */
+    public final static boolean IsIteration(String sectionName) {
+        return (-1 != sectionName.indexOf("_it_") && (sectionName.endsWith(Suffix.First)
+            || sectionName.endsWith(Suffix.NotFirst) || sectionName.endsWith(Suffix.Last)
+            || sectionName.endsWith(Suffix.NotLast) || sectionName.endsWith(Suffix.Exclusive)));
+    }
+
     public final static void Define(TemplateDataDictionary dict, String sectionName, int cc,
         int count) {
         if (0 == cc) {
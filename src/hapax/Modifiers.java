@@ -25,15 +25,30 @@
  */
 package hapax;
 
-import java.io.UnsupportedEncodingException;
-import java.net.URLEncoder;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import hapax.parser.TemplateParserException;
 
 /**
  * Static class that implements the methods used by the modifiers.
  *
+ * Modifiers are implemented as streaming {@link Escaper escapers}, each an
+ * output filtering characters on the fly to the next. A chain of escapers is
+ * applied to a value or an include without intermediate strings. Strings that
+ * no modifier changes are returned as is. Template nodes {@link #compile(String[])
+ * compile} their modifiers when parsed into a {@link Chain}, escaping runs of
+ * built in modifiers in one pass.
+ *
+ * Custom modifiers with names starting <code>"x-"</code> and an optional
+ * argument, as <code>{{VAR:x-name=argument}}</code>, are {@link #register
+ * registered} with a {@link Factory}.
+ *
  * @author dcoker
  * @author jdp
  */
@@ -47,26 +62,857 @@ public final class Modifiers {
         B, // turns \n into <br/>
     }
 
-    public static String applyModifiers(String input, List<FLAGS> modifiers) {
-        for (FLAGS modifier : modifiers) {
-            switch (modifier) {
-                case H:
-                    input = htmlEscape(input);
-                    break;
-                case X:
-                    input = xmlEscape(input);
+    /*
+     * Replacements for ASCII characters by modifier ordinal, null for
+     * unmodified characters
+     */
+    private final static String[][] Tables = new String[FLAGS.values().length][];
+    static {
+        for (FLAGS modifier : FLAGS.values()) {
+            String[] table = new String[0x80];
+            for (char ch = 0; ch < 0x80; ch++) {
+                table[ch] = Replace(modifier, ch);
+            }
+            Tables[modifier.ordinal()] = table;
+        }
+    }
+
+    private static String Replace(FLAGS modifier, char ch) {
+        switch (modifier) {
+            case H:
+                if (Character.isLetterOrDigit(ch) || ' ' == ch || '\r' == ch || '\n' == ch
+                    || '\t' == ch) return null;
+                else if ('&' == ch) return "&amp;";
+                else if ('"' == ch) return "&quot;";
+                else
+                    return "&#" + (int) ch + ';';
+            case X:
+                if (Character.isLetterOrDigit(ch) || ' ' == ch) return null;
+                else
+                    return "&#" + (int) ch + ';';
+            case J:
+                if (Character.isLetterOrDigit(ch) || '_' == ch || ' ' == ch) return null;
+                else
+                    return "\\x" + Integer.toHexString(ch);
+            case U:
+                if (('a' <= ch && 'z' >= ch) || ('A' <= ch && 'Z' >= ch) || ('0' <= ch && '9' >= ch)
+                    || '.' == ch || '-' == ch || '*' == ch || '_' == ch) return null;
+                else if (' ' == ch) return "+";
+                else
+                    return "%" + HexUpper.charAt(ch >> 4) + HexUpper.charAt(ch & 0xF);
+            case B:
+                if ('\n' == ch) return "<br />";
+                else
+                    return null;
+            default:
+                throw new IllegalArgumentException(modifier.name());
+        }
+    }
+
+    /**
+     * @return The character above ASCII is modified
+     */
+    private static boolean Escapes(FLAGS modifier, char ch) {
+        switch (modifier) {
+            case U:
+                return true;
+            case B:
+                return false;
+            default:
+                return (!Character.isLetterOrDigit(ch));
+        }
+    }
+
+    private final static String HexUpper = "0123456789ABCDEF";
+
+    private final static String HexLower = "0123456789abcdef";
+
+    /*
+     * URL escapes by octet
+     */
+    private final static String[] Octets = new String[0x100];
+    static {
+        for (int octet = 0; octet < 0x100; octet++) {
+            Octets[octet] = "%" + HexUpper.charAt(octet >> 4) + HexUpper.charAt(octet & 0xF);
+        }
+    }
+
+    /**
+     * Streaming modifier writing the modified form of its input to the next
+     * output. The end of a modified value is marked by {@link #complete()}.
+     *
+     * Runs of unmodified characters are written as ranges of the input, and
+     * ASCII characters are replaced from a table.
+     */
+    public abstract static class Escaper extends TemplateOutput {
+
+        /*
+         * Null for a custom modifier
+         */
+        public final FLAGS modifier;
+
+        protected final TemplateOutput out;
+
+        protected final String[] table;
+
+        /*
+         * Escape sequence buffer, created on first use
+         */
+        private StringBuilder escape;
+
+        protected Escaper(FLAGS modifier, TemplateOutput out) {
+            this(modifier, Tables[modifier.ordinal()], out);
+        }
+
+        /**
+         * Custom modifier replacing ASCII characters from the table, and
+         * characters above ASCII that it {@link #escapes(char) escapes}.
+         *
+         * @param table
+         *            Replacements for ASCII characters, null for unmodified
+         */
+        protected Escaper(String[] table, TemplateOutput out) {
+            this(null, table, out);
+        }
+
+        private Escaper(FLAGS modifier, String[] table, TemplateOutput out) {
+            super();
+            if (null != table && 0x80 == table.length && null != out) {
+                this.modifier = modifier;
+                this.out = out;
+                this.table = table;
+            } else
+                throw new IllegalArgumentException();
+        }
+
+        @Override
+        public final void write(String text) throws TemplateException {
+            this.write(text, 0, text.length());
+        }
+
+        @Override
+        public void write(CharSequence text, int start, int end) throws TemplateException {
+            String[] table = this.table;
+            TemplateOutput out = this.out;
+            int run = start;
+            for (int cc = start; cc < end; cc++) {
+                char ch = text.charAt(cc);
+                if (ch < 0x80) {
+                    String replacement = table[ch];
+                    if (null != replacement) {
+                        if (run < cc) out.write(text, run, cc);
+                        run = (cc + 1);
+
+                        out.write(replacement);
+                    }
+                } else if (this.escapes(ch)) {
+                    if (run < cc) out.write(text, run, cc);
+                    run = (cc + 1);
+
+                    this.escape(ch);
+                }
+            }
+            if (run < end) out.write(text, run, end);
+        }
+
+        /**
+         * @return The character above ASCII is modified
+         */
+        protected boolean escapes(char ch) {
+            return (null != this.modifier && Escapes(this.modifier, ch));
+        }
+
+        /**
+         * Write the modified form of a character above ASCII.
+         */
+        protected abstract void escape(char ch) throws TemplateException;
+
+        /**
+         * End of the modified value, writing pending input through the chain.
+         */
+        public void complete() throws TemplateException {
+            if (this.out instanceof Escaper) ((Escaper) this.out).complete();
+        }
+
+        @Override
+        public void flush() throws TemplateException {
+            this.out.flush();
+        }
+
+        /**
+         * @return Empty escape sequence buffer
+         */
+        protected final StringBuilder buffer() {
+            StringBuilder escape = this.escape;
+            if (null == escape) {
+                escape = new StringBuilder(12);
+                this.escape = escape;
+            }
+            return escape;
+        }
+
+        /**
+         * Write the escape sequence buffer.
+         */
+        protected final void escape() throws TemplateException {
+            StringBuilder escape = this.escape;
+            this.out.write(escape, 0, escape.length());
+            escape.setLength(0);
+        }
+
+        /**
+         * Write the decimal character reference.
+         */
+        protected final void reference(char ch) throws TemplateException {
+            this.buffer().append("&#").append((int) ch).append(';');
+            this.escape();
+        }
+    }
+
+    /**
+     * HTML text, preserving letters, digits and whitespace.
+     */
+    private final static class Html extends Escaper {
+
+        Html(TemplateOutput out) {
+            super(FLAGS.H, out);
+        }
+
+        @Override
+        protected void escape(char ch) throws TemplateException {
+            this.reference(ch);
+        }
+    }
+
+    /**
+     * XML text, preserving letters, digits and space.
+     */
+    private final static class Xml extends Escaper {
+
+        Xml(TemplateOutput out) {
+            super(FLAGS.X, out);
+        }
+
+        @Override
+        protected void escape(char ch) throws TemplateException {
+            this.reference(ch);
+        }
+    }
+
+    /**
+     * JavaScript string literal content.
+     */
+    private final static class Js extends Escaper {
+
+        Js(TemplateOutput out) {
+            super(FLAGS.J, out);
+        }
+
+        @Override
+        protected void escape(char ch) throws TemplateException {
+            StringBuilder escape = this.buffer();
+            if (ch < 0x100) escape.append("\\x");
+            else {
+                escape.append("\\u");
+                escape.append(HexLower.charAt(ch >> 12));
+                escape.append(HexLower.charAt((ch >> 8) & 0xF));
+            }
+            escape.append(HexLower.charAt((ch >> 4) & 0xF));
+            escape.append(HexLower.charAt(ch & 0xF));
+            this.escape();
+        }
+    }
+
+    /**
+     * URL parameter, as {@link java.net.URLEncoder} in UTF-8. Surrogate pairs
+     * are encoded as one code point, including pairs divided between writes,
+     * and unpaired surrogates as <code>"?"</code>.
+     */
+    private final static class Url extends Escaper {
+
+        private char high;
+
+        Url(TemplateOutput out) {
+            super(FLAGS.U, out);
+        }
+
+        @Override
+        public void write(CharSequence text, int start, int end) throws TemplateException {
+            String[] table = this.table;
+            TemplateOutput out = this.out;
+            int run = start;
+            for (int cc = start; cc < end; cc++) {
+                char ch = text.charAt(cc);
+                /*
+                 * A pending high surrogate follows the last run
+                 */
+                char high = this.high;
+                if (0 != high) {
+                    this.high = 0;
+                    if (Character.isLowSurrogate(ch)) {
+                        this.bytes(Character.toCodePoint(high, ch));
+                        run = (cc + 1);
+                        continue;
+                    } else
+                        out.write("%3F");
+                }
+
+                if (ch < 0x80) {
+                    String replacement = table[ch];
+                    if (null != replacement) {
+                        if (run < cc) out.write(text, run, cc);
+                        run = (cc + 1);
+
+                        out.write(replacement);
+                    }
+                } else {
+                    if (run < cc) out.write(text, run, cc);
+                    run = (cc + 1);
+
+                    this.escape(ch);
+                }
+            }
+            if (run < end) out.write(text, run, end);
+        }
+
+        @Override
+        protected void escape(char ch) throws TemplateException {
+            if (Character.isHighSurrogate(ch)) this.high = ch;
+            else if (Character.isLowSurrogate(ch)) this.out.write("%3F");
+            else
+                this.bytes(ch);
+        }
+
+        @Override
+        public void complete() throws TemplateException {
+            if (0 != this.high) {
+                this.high = 0;
+                this.out.write("%3F");
+            }
+            super.complete();
+        }
+
+        /**
+         * Write the UTF-8 encoding of the code point above ASCII.
+         */
+        private void bytes(int cp) throws TemplateException {
+            TemplateOutput out = this.out;
+            if (cp < 0x800) {
+                out.write(Octets[0xC0 | (cp >> 6)]);
+                out.write(Octets[0x80 | (cp & 0x3F)]);
+            } else if (cp < 0x10000) {
+                out.write(Octets[0xE0 | (cp >> 12)]);
+                out.write(Octets[0x80 | ((cp >> 6) & 0x3F)]);
+                out.write(Octets[0x80 | (cp & 0x3F)]);
+            } else {
+                out.write(Octets[0xF0 | (cp >> 18)]);
+                out.write(Octets[0x80 | ((cp >> 12) & 0x3F)]);
+                out.write(Octets[0x80 | ((cp >> 6) & 0x3F)]);
+                out.write(Octets[0x80 | (cp & 0x3F)]);
+            }
+        }
+    }
+
+    /**
+     * Newline (LF) to X/HTML BR.
+     */
+    private final static class Breaks extends Escaper {
+
+        Breaks(TemplateOutput out) {
+            super(FLAGS.B, out);
+        }
+
+        @Override
+        protected void escape(char ch) {
+        }
+    }
+
+    /**
+     * Modifier named in a template as <code>{{VAR:name}}</code> or
+     * <code>{{VAR:name=argument}}</code>, bound to its argument when the
+     * template is parsed. Custom modifiers are {@link Modifiers#register
+     * registered} under names starting with <code>"x-"</code>.
+     */
+    public abstract static class Modifier {
+
+        public final String name;
+
+        /*
+         * Null for none
+         */
+        public final String argument;
+
+        protected Modifier(String name, String argument) {
+            super();
+            if (null != name) {
+                this.name = name;
+                this.argument = argument;
+            } else
+                throw new IllegalArgumentException();
+        }
+
+        /**
+         * @return New escaper writing the modified form of its input to the
+         *         output
+         */
+        public abstract Escaper escaper(TemplateOutput out);
+
+        /**
+         * @return Expected ratio of output to input length for typical text,
+         *         for sizing buffers
+         */
+        public float getExpansion() {
+            return 1.0f;
+        }
+
+        /**
+         * @return Modifier as written in a template
+         */
+        @Override
+        public String toString() {
+            if (null == this.argument) return this.name;
+            else
+                return (this.name + '=' + this.argument);
+        }
+    }
+
+    /**
+     * Creates the modifiers of a registered name.
+     */
+    public interface Factory {
+
+        /**
+         * @param argument
+         *            Text following <code>"="</code>, or null
+         * @exception IllegalArgumentException
+         *                Invalid argument
+         */
+        public Modifier create(String name, String argument);
+    }
+
+    private final static class Builtin extends Modifier {
+
+        final FLAGS flag;
+
+        private final float expansion;
+
+        Builtin(FLAGS flag, float expansion) {
+            super(flag.name().toLowerCase(Locale.US), null);
+            this.flag = flag;
+            this.expansion = expansion;
+        }
+
+        @Override
+        public Escaper escaper(TemplateOutput out) {
+            return Modifiers.escaper(this.flag, out);
+        }
+
+        @Override
+        public float getExpansion() {
+            return this.expansion;
+        }
+    }
+
+    /*
+     * Built in modifiers by ordinal
+     */
+    private final static Builtin[] Builtins = { new Builtin(FLAGS.H, 1.1f),
+        new Builtin(FLAGS.X, 1.1f), new Builtin(FLAGS.J, 1.2f), new Builtin(FLAGS.U, 1.3f),
+        new Builtin(FLAGS.B, 1.05f) };
+
+    private final static Map<String, Factory> Registry = new ConcurrentHashMap<String, Factory>();
+
+    /**
+     * Register a custom modifier for templates parsed after.
+     *
+     * @param name
+     *            Starting with <code>"x-"</code>, compared ignoring case
+     * @exception IllegalArgumentException
+     *                Invalid name
+     */
+    public static void register(String name, Factory factory) {
+        String key = name.toLowerCase(Locale.US);
+        if (null != factory && key.startsWith("x-") && 2 < key.length()
+            && 0 > key.indexOf(':') && 0 > key.indexOf('=') && 0 > key.indexOf('}')) {
+            Registry.put(key, factory);
+        } else
+            throw new IllegalArgumentException(name);
+    }
+
+    public static void unregister(String name) {
+        Registry.remove(name.toLowerCase(Locale.US));
+    }
+
+    /**
+     * @param spec
+     *            Modifier as written in a template
+     * @exception TemplateParserException
+     *                Unknown modifier or invalid argument
+     */
+    public static Modifier lookup(String spec) throws TemplateParserException {
+        String name = spec, argument = null;
+        int eq = spec.indexOf('=');
+        if (0 <= eq) {
+            name = spec.substring(0, eq);
+            argument = spec.substring(eq + 1);
+        }
+        String key = name.toLowerCase(Locale.US);
+        for (Builtin builtin : Builtins) {
+            if (builtin.name.equals(key)) {
+                if (null == argument) return builtin;
+                else
+                    throw new TemplateParserException("Unexpected argument to modifier '" + spec
+                        + "'");
+            }
+        }
+        Factory factory = Registry.get(key);
+        if (null == factory) throw new TemplateParserException("Unknown modifier '" + spec + "'");
+        else {
+            try {
+                Modifier modifier = factory.create(key, argument);
+                if (null != modifier) return modifier;
+                else
+                    throw new IllegalArgumentException();
+            } catch (IllegalArgumentException exc) {
+                throw new TemplateParserException("Invalid modifier '" + spec + "'", exc);
+            }
+        }
+    }
+
+    /**
+     * Modifier list compiled for a template node. Consecutive built in
+     * modifiers escape in one pass through a fused table of ASCII
+     * replacements, and custom modifiers write through to the next.
+     */
+    public final static class Chain {
+
+        private final List<Modifier> modifiers;
+
+        /*
+         * Modifiers applied in order, with runs of built in modifiers fused
+         */
+        private final Modifier[] stages;
+
+        private final float expansion;
+
+        Chain(Modifier[] modifiers) {
+            super();
+            this.modifiers = Collections.unmodifiableList(Arrays.asList(modifiers));
+
+            List<Modifier> stages = new ArrayList<Modifier>(modifiers.length);
+            List<FLAGS> run = new ArrayList<FLAGS>(modifiers.length);
+            float expansion = 1.0f;
+            for (Modifier modifier : modifiers) {
+                expansion *= modifier.getExpansion();
+                if (modifier instanceof Builtin) run.add(((Builtin) modifier).flag);
+                else {
+                    Fuse(run, stages);
+                    stages.add(modifier);
+                }
+            }
+            Fuse(run, stages);
+
+            this.stages = stages.toArray(new Modifier[stages.size()]);
+            this.expansion = expansion;
+        }
+
+        public List<Modifier> getModifiers() {
+            return this.modifiers;
+        }
+
+        public boolean isEmpty() {
+            return (0 == this.stages.length);
+        }
+
+        /**
+         * @return Expected ratio of output to input length for typical text
+         */
+        public float getExpansion() {
+            return this.expansion;
+        }
+
+        /**
+         * @return Escaper applying the modifiers in order, and writing to the
+         *         output
+         */
+        public Escaper escaper(TemplateOutput out) {
+            Modifier[] stages = this.stages;
+            if (0 == stages.length) throw new IllegalStateException("Empty modifier chain");
+            else {
+                for (int cc = (stages.length - 1); 0 <= cc; cc--) {
+                    out = stages[cc].escaper(out);
+                }
+                return (Escaper) out;
+            }
+        }
+
+        /**
+         * @return The modified string
+         */
+        public String apply(String input) {
+            if (this.isEmpty()) return input;
+            else {
+                int capacity = (int) (input.length() * this.expansion) + 0x10;
+                TemplateOutput.Text out = new TemplateOutput.Text(new StringBuilder(capacity));
+                try {
+                    Escaper escaper = this.escaper(out);
+                    escaper.write(input);
+                    escaper.complete();
+                } catch (TemplateException exc) {
+                    throw new IllegalStateException(exc);
+                }
+                return out.toString();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return this.modifiers.toString();
+        }
+
+        private static void Fuse(List<FLAGS> run, List<Modifier> stages) {
+            switch (run.size()) {
+                case 0:
                     break;
-                case J:
-                    input = jsEscape(input);
+                case 1:
+                    stages.add(Builtins[run.get(0).ordinal()]);
                     break;
-                case U:
-                    input = urlEncode(input);
+                default:
+                    stages.add(new Fusion(run));
                     break;
-                case B:
-                    input = newlinesToBreaks(input);
             }
+            run.clear();
+        }
+    }
+
+    /**
+     * Consecutive built in modifiers with a fused table of ASCII
+     * replacements, built by applying the modifiers in order to each ASCII
+     * character.
+     */
+    private final static class Fusion extends Modifier {
+
+        final FLAGS[] flags;
+
+        final List<FLAGS> list;
+
+        final String[] table;
+
+        private final float expansion;
+
+        Fusion(List<FLAGS> flags) {
+            super(flags.toString(), null);
+            this.flags = flags.toArray(new FLAGS[flags.size()]);
+            this.list = Arrays.asList(this.flags.clone());
+
+            String[] table = new String[0x80];
+            for (char ch = 0; ch < 0x80; ch++) {
+                String input = String.valueOf(ch);
+                String output = applyModifiers(input, flags);
+                if (!input.equals(output)) table[ch] = output;
+            }
+            this.table = table;
+
+            float expansion = 1.0f;
+            for (FLAGS flag : this.flags) {
+                expansion *= Builtins[flag.ordinal()].expansion;
+            }
+            this.expansion = expansion;
+        }
+
+        /**
+         * @return Some modifier modifies the character above ASCII
+         */
+        boolean escapes(char ch) {
+            for (FLAGS flag : this.flags) {
+                if (Escapes(flag, ch)) return true;
+            }
+            return false;
+        }
+
+        @Override
+        public Escaper escaper(TemplateOutput out) {
+            return new Fused(this, out);
+        }
+
+        @Override
+        public float getExpansion() {
+            return this.expansion;
+        }
+    }
+
+    /**
+     * One pass over consecutive built in modifiers. Characters above ASCII
+     * that the modifiers modify are written through them in sequence, as is
+     * the character following a high surrogate so that pairs stay together.
+     */
+    private final static class Fused extends Escaper {
+
+        private final Fusion fusion;
+
+        /*
+         * Sequential escapers, created on first use
+         */
+        private Escaper sequence;
+
+        /*
+         * The last character written to the sequence is a high surrogate
+         */
+        private boolean pending;
+
+        Fused(Fusion fusion, TemplateOutput out) {
+            super(fusion.flags[0], fusion.table, out);
+            this.fusion = fusion;
+        }
+
+        @Override
+        public void write(CharSequence text, int start, int end) throws TemplateException {
+            String[] table = this.table;
+            TemplateOutput out = this.out;
+            int run = start;
+            for (int cc = start; cc < end; cc++) {
+                char ch = text.charAt(cc);
+                if (this.pending || (0x80 <= ch && this.fusion.escapes(ch))) {
+                    if (run < cc) out.write(text, run, cc);
+                    run = (cc + 1);
+
+                    this.sequence().write(text, cc, run);
+                    this.pending = Character.isHighSurrogate(ch);
+                } else if (ch < 0x80) {
+                    String replacement = table[ch];
+                    if (null != replacement) {
+                        if (run < cc) out.write(text, run, cc);
+                        run = (cc + 1);
+
+                        out.write(replacement);
+                    }
+                }
+            }
+            if (run < end) out.write(text, run, end);
+        }
+
+        @Override
+        protected boolean escapes(char ch) {
+            return this.fusion.escapes(ch);
+        }
+
+        @Override
+        protected void escape(char ch) throws TemplateException {
+            this.sequence().write(String.valueOf(ch));
+            this.pending = Character.isHighSurrogate(ch);
+        }
+
+        @Override
+        public void complete() throws TemplateException {
+            this.pending = false;
+            if (null != this.sequence) this.sequence.complete();
+            else
+                super.complete();
+        }
+
+        private Escaper sequence() {
+            Escaper sequence = this.sequence;
+            if (null == sequence) {
+                sequence = escaper(this.fusion.list, this.out);
+                this.sequence = sequence;
+            }
+            return sequence;
+        }
+    }
+
+    /**
+     * @return Index of the first character in the range modified by the
+     *         modifier, or the end index
+     */
+    public static int scan(FLAGS modifier, CharSequence text, int start, int end) {
+        String[] table = Tables[modifier.ordinal()];
+        for (int cc = start; cc < end; cc++) {
+            char ch = text.charAt(cc);
+            if (ch < 0x80) {
+                if (null != table[ch]) return cc;
+            } else if (Escapes(modifier, ch)) return cc;
+        }
+        return end;
+    }
+
+    /**
+     * @return Escaper chain applying the modifiers in order, and writing to
+     *         the output
+     */
+    public static Escaper escaper(List<FLAGS> modifiers, TemplateOutput out) {
+        if (modifiers.isEmpty()) throw new IllegalArgumentException();
+        else {
+            for (int cc = (modifiers.size() - 1); 0 <= cc; cc--) {
+                out = escaper(modifiers.get(cc), out);
+            }
+            return (Escaper) out;
+        }
+    }
+
+    /**
+     * @return Modifiers compiled for repeated rendering
+     */
+    public static Chain compile(List<FLAGS> modifiers) {
+        Modifier[] list = new Modifier[modifiers.size()];
+        for (int cc = 0; cc < list.length; cc++) {
+            list[cc] = Builtins[modifiers.get(cc).ordinal()];
+        }
+        return new Chain(list);
+    }
+
+    /**
+     * @param spec
+     *            Name followed by modifiers, as split from a template tag
+     * @return Modifiers compiled for repeated rendering
+     * @exception TemplateParserException
+     *                Unknown modifier or invalid argument
+     */
+    public static Chain compile(String[] spec) throws TemplateParserException {
+        Modifier[] list = new Modifier[Math.max(0, spec.length - 1)];
+        for (int cc = 0; cc < list.length; cc++) {
+            list[cc] = lookup(spec[cc + 1]);
+        }
+        return new Chain(list);
+    }
+
+    public static Escaper escaper(FLAGS modifier, TemplateOutput out) {
+        switch (modifier) {
+            case H:
+                return new Html(out);
+            case X:
+                return new Xml(out);
+            case J:
+                return new Js(out);
+            case U:
+                return new Url(out);
+            case B:
+                return new Breaks(out);
+            default:
+                throw new IllegalArgumentException(modifier.name());
+        }
+    }
+
+    /**
+     * @return The input when unmodified, or the modified string
+     */
+    public static String applyModifiers(String input, List<FLAGS> modifiers) {
+        if (Unmodified(input, modifiers)) return input;
+        else {
+            float expansion = 1.0f;
+            for (int cc = 0, count = modifiers.size(); cc < count; cc++) {
+                expansion *= Builtins[modifiers.get(cc).ordinal()].expansion;
+            }
+            int capacity = (int) (input.length() * expansion) + 0x10;
+            TemplateOutput.Text out = new TemplateOutput.Text(new StringBuilder(capacity));
+            try {
+                Escaper escaper = escaper(modifiers, out);
+                escaper.write(input);
+                escaper.complete();
+            } catch (TemplateException exc) {
+                throw new IllegalStateException(exc);
+            }
+            return out.toString();
         }
-        return input;
     }
 
     public static List<FLAGS> parseModifiers(String[] split) {
@@ -86,88 +932,42 @@ public final class Modifiers {
      * @return The escaped string
      */
     public static String jsEscape(String unescaped) {
-        final String also_safe = "_ ";
-        StringBuilder escaped = new StringBuilder();
-        for (int i = 0; i < unescaped.length(); i++) {
-            char ch = unescaped.charAt(i);
-            if (Character.isLetterOrDigit(ch) || also_safe.indexOf(ch) != -1) {
-                escaped.append(ch);
-            } else if (ch < 256) {
-                escaped.append("\\x").append(Integer.toHexString(ch));
-            } else {
-                escaped.append("\\u").append(String.format("%04x", (int) ch));
-            }
-        }
-        return escaped.toString();
+        return Apply(FLAGS.J, unescaped);
     }
 
     /**
      * Convert newline (LF) to X/HTML BR.
      */
     public static String newlinesToBreaks(String t) {
-        return t.replaceAll("\n", "<br />");
+        return Apply(FLAGS.B, t);
     }
 
-    /**
-     * Given a string, returns a string suitable for inclusion as a URL
-     * parameter.
-     *
-     * @param unescaped
-     *            The value to escape.
-     * @return The escaped value.
-     */
-    private static String urlEncode(String unescaped) {
-        try {
-            return URLEncoder.encode(unescaped, "UTF-8");
-        } catch (UnsupportedEncodingException e) {
-            throw new RuntimeException(e);
-        }
-    }
-
-    /**
-     * Given a string, returns a string suitable for use in an XML file.
-     *
-     * @param unescaped
-     *            The string to escape.
-     * @return The escaped string.
-     */
-    private static String xmlEscape(String unescaped) {
-        StringBuilder escaped = new StringBuilder();
-        for (int i = 0; i < unescaped.length(); i++) {
-            char ch = unescaped.charAt(i);
-            if (Character.isLetterOrDigit(ch) || ch == ' ') {
-                escaped.append(ch);
-            } else {
-                escaped.append("&#").append((int) ch).append(";");
+    private static String Apply(FLAGS modifier, String input) {
+        int length = input.length();
+        if (length == scan(modifier, input, 0, length)) return input;
+        else {
+            TemplateOutput.Text out = new TemplateOutput.Text(new StringBuilder(length + 0x10));
+            try {
+                Escaper escaper = escaper(modifier, out);
+                escaper.write(input);
+                escaper.complete();
+            } catch (TemplateException exc) {
+                throw new IllegalStateException(exc);
             }
+            return out.toString();
         }
-        return escaped.toString();
     }
 
     /**
-     * Given a string, returns a string suitable for use in an HTML document.
-     *
-     * @param unescaped
-     *            The string to escape.
-     * @return The escaped string.
-     */
-    private static String htmlEscape(String unescaped) {
-        StringBuilder escaped = new StringBuilder();
-        for (int i = 0; i < unescaped.length(); i++) {
-            char ch = unescaped.charAt(i);
-            if (Character.isLetterOrDigit(ch) || ch == ' ') {
-                escaped.append(ch);
-            } else if (ch == '&') {
-                escaped.append("&amp;");
-            } else if (ch == '"') {
-                escaped.append("&quot;");
-            } else if (ch == '\r' || ch == '\n' || ch == '\t') {
-                escaped.append(ch);
-            } else {
-                escaped.append("&#").append((int) ch).append(";");
-            }
+     * @return No modifier modifies the input
+     */
+    private static boolean Unmodified(String input, List<FLAGS> modifiers) {
+        int length = input.length();
+        for (int cc = 0, count = modifiers.size(); cc < count; cc++) {
+
+            if (length != scan(modifiers.get(cc), input, 0, length)) return false;
         }
-        return escaped.toString();
+        return true;
     }
 
     private Modifiers() {
@@ -0,0 +1,581 @@
+/*
+ * Hapax2
+ * Copyright (c) 2007 Doug Coker
+ * Copyright (c) 2009 John Pritchard
+ *
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hapax;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A data dictionary over an object graph, reading the properties of objects
+ * when rendering requests them. Properties are named as in their class, as
+ * "fooBar" for "getFooBar()", and in upper case, as "FOO_BAR".
+ *
+ * Properties are defined by public getters, by public methods named as a
+ * field of the same type (record accessors), and by public fields. The
+ * accessors of each class are found once and shared.
+ *
+ * A property value is a variable, formatted when read. As a section, a
+ * collection, iterable or array iterates its elements, a boolean shows or
+ * hides the section, and an object or map shows it once with its
+ * properties. Null, false and empty values hide the section.
+ *
+ * Variables and sections defined on the dictionary overlay those of the
+ * object, which is not modified.
+ *
+ * @author jdp
+ */
+public class ObjectDictionary
+    implements TemplateDataDictionary {
+
+    /**
+     * Creates a top-level ObjectDictionary.
+     *
+     * @return a new ObjectDictionary over the object
+     */
+    public static ObjectDictionary create(Object object) {
+        return new ObjectDictionary(object, null);
+    }
+
+    /**
+     * Property of the objects of a class.
+     */
+    private abstract static class Accessor {
+
+        abstract Object get(Object object);
+    }
+
+    private final static class MethodAccessor extends Accessor {
+
+        private final Method method;
+
+        MethodAccessor(Method method) {
+            super();
+            this.method = method;
+        }
+
+        @Override
+        Object get(Object object) {
+            try {
+                return this.method.invoke(object);
+            } catch (InvocationTargetException exc) {
+                Throwable cause = exc.getCause();
+                if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                else if (cause instanceof Error) throw (Error) cause;
+                else
+                    throw new IllegalStateException(this.method.getName(), cause);
+            } catch (IllegalAccessException exc) {
+                throw new IllegalStateException(this.method.getName(), exc);
+            }
+        }
+    }
+
+    private final static class FieldAccessor extends Accessor {
+
+        private final Field field;
+
+        FieldAccessor(Field field) {
+            super();
+            this.field = field;
+        }
+
+        @Override
+        Object get(Object object) {
+            try {
+                return this.field.get(object);
+            } catch (IllegalAccessException exc) {
+                throw new IllegalStateException(this.field.getName(), exc);
+            }
+        }
+    }
+
+    /*
+     * Accessor tables by class
+     */
+    private final static ConcurrentMap<Class<?>, Map<String, Accessor>> Tables = new ConcurrentHashMap<Class<?>, Map<String, Accessor>>();
+
+    /*
+     * Property not defined by the object
+     */
+    private final static Object Undefined = new Object();
+
+    protected final Object object;
+
+    protected TemplateDataDictionary parent;
+
+    /*
+     * Accessors of the object, or null for a map
+     */
+    private final Map<String, Accessor> accessors;
+
+    /*
+     * Variables and sections defined here, and sections derived from the
+     * object and ancestors, created on first use
+     */
+    private LinkedHashMap<String, String> variables;
+
+    private LinkedHashMap<String, List<TemplateDataDictionary>> sections;
+
+    protected ObjectDictionary(Object object, TemplateDataDictionary parent) {
+        super();
+        if (null != object) {
+            this.object = object;
+            this.parent = parent;
+            if (object instanceof Map) this.accessors = null;
+            else
+                this.accessors = Accessors(object.getClass());
+        } else
+            throw new IllegalArgumentException();
+    }
+
+    /**
+     * @return Object of this dictionary
+     */
+    public final Object getObject() {
+        return this.object;
+    }
+
+    @Override
+    public TemplateDataDictionary getParent() {
+        return this.parent;
+    }
+
+    /**
+     * Called by template render. The object is retained.
+     */
+    @Override
+    public void renderComplete() {
+        this.parent = null;
+        this.variables = null;
+        if (null != this.sections) {
+            for (List<TemplateDataDictionary> section : this.sections.values()) {
+                for (TemplateDataDictionary child : section) {
+                    child.renderComplete();
+                }
+            }
+            this.sections = null;
+        }
+    }
+
+    /**
+     * Deep clone of dictionary carries parent, and shares the object.
+     */
+    @Override
+    public TemplateDataDictionary clone() {
+        ObjectDictionary clone = new ObjectDictionary(this.object, this.parent);
+        if (null != this.variables)
+            clone.variables = new LinkedHashMap<String, String>(this.variables);
+        if (null != this.sections) {
+            for (Map.Entry<String, List<TemplateDataDictionary>> entry : this.sections.entrySet()) {
+
+                clone.define(entry.getKey(), TemplateDictionary.SectionClone(clone, entry
+                    .getValue()));
+            }
+        }
+        return clone;
+    }
+
+    /**
+     * Deep clone replaces parent.
+     */
+    @Override
+    public TemplateDataDictionary clone(TemplateDataDictionary parent) {
+        if (null != parent) {
+            ObjectDictionary clone = (ObjectDictionary) this.clone();
+            clone.parent = parent;
+            return clone;
+        } else
+            throw new IllegalStateException();
+    }
+
+    /*
+     * Variable API
+     */
+
+    @Override
+    public boolean hasVariable(String varName) {
+
+        if (null != this.variables && this.variables.containsKey(varName)) return true;
+        else {
+            Object value = this.property(varName);
+            if (Undefined != value && null != value) return true;
+            else if (null != this.parent) return this.parent.hasVariable(varName);
+            else
+                return false;
+        }
+    }
+
+    @Override
+    public String getVariable(String varName) {
+
+        String value = null;
+        if (null != this.variables) value = this.variables.get(varName);
+
+        if (null == value) {
+            Object property = this.property(varName);
+            if (Undefined != property && null != property) value = String.valueOf(property);
+        }
+        if (null != value) return value;
+        else if (null != this.parent) return this.parent.getVariable(varName);
+        else
+            return "";
+    }
+
+    @Override
+    public void setVariable(String varName, String value) {
+        LinkedHashMap<String, String> variables = this.variables;
+        if (null == variables) {
+            variables = new LinkedHashMap<String, String>();
+            this.variables = variables;
+        }
+        variables.put(varName, value);
+    }
+
+    /*
+     * Section API
+     */
+
+    /**
+     * @return a list of TemplateDictionaries that iterate the section, or null
+     *         for a section not visible.
+     */
+    @Override
+    public List<TemplateDataDictionary> getSection(String sectionName) {
+
+        List<TemplateDataDictionary> section = null;
+        if (null != this.sections) section = this.sections.get(sectionName);
+        if (null != section) return section;
+        else {
+            Object value = this.property(sectionName);
+            if (Undefined != value) {
+                section = this.rows(sectionName, value);
+                if (null != section) return this.define(sectionName, section);
+                else
+                    return null;
+            }
+            /*
+             * Inherit section
+             */
+            TemplateDataDictionary parent = this.parent;
+            if (null != parent) {
+                List<TemplateDataDictionary> ancestor = parent.getSection(sectionName);
+                if (null != ancestor) {
+                    section = TemplateDictionary.Under(ancestor, this);
+                    if (null == section) {
+                        section = new ArrayList<TemplateDataDictionary>(ancestor.size());
+                        for (TemplateDataDictionary child : ancestor) {
+                            section.add(child.clone(this));
+                        }
+                    }
+                    return this.define(sectionName, section);
+                }
+            }
+            /*
+             * Synthesize section
+             */
+            if (this.hasVariable(sectionName)) return this.define(sectionName, this.show());
+            else
+                return null;
+        }
+    }
+
+    /**
+     * @return A section data list having at least one section iteration data
+     *         dictionary.
+     */
+    @Override
+    public List<TemplateDataDictionary> showSection(String sectionName) {
+
+        List<TemplateDataDictionary> section = this.local(sectionName);
+        if (null != section) return section;
+        else
+            return this.define(sectionName, this.show());
+    }
+
+    @Override
+    public TemplateDataDictionary addSection(String sectionName) {
+
+        TemplateDictionary add = new TemplateDictionary(this);
+
+        List<TemplateDataDictionary> section = this.local(sectionName);
+        if (null == section)
+            section = this.define(sectionName, new ArrayList<TemplateDataDictionary>());
+
+        section.add(add);
+        return add;
+    }
+
+    /**
+     * @return Section defined here or by the object, or null
+     */
+    private List<TemplateDataDictionary> local(String sectionName) {
+
+        if (null != this.sections) {
+            List<TemplateDataDictionary> section = this.sections.get(sectionName);
+            if (null != section) return section;
+        }
+        Object value = this.property(sectionName);
+        if (Undefined != value) {
+            List<TemplateDataDictionary> section = this.rows(sectionName, value);
+            if (null != section) return this.define(sectionName, section);
+        }
+        return null;
+    }
+
+    private List<TemplateDataDictionary> define(String sectionName,
+        List<TemplateDataDictionary> section) {
+        LinkedHashMap<String, List<TemplateDataDictionary>> sections = this.sections;
+        if (null == sections) {
+            sections = new LinkedHashMap<String, List<TemplateDataDictionary>>();
+            this.sections = sections;
+        }
+        sections.put(sectionName, section);
+        return section;
+    }
+
+    private List<TemplateDataDictionary> show() {
+        List<TemplateDataDictionary> section = new ArrayList<TemplateDataDictionary>(1);
+        section.add(new TemplateDictionary(this));
+        return section;
+    }
+
+    /**
+     * @return Property value, possibly null, or undefined
+     */
+    private Object property(String name) {
+        Object object = this.object;
+        if (null == this.accessors) {
+            Map<?, ?> map = (Map<?, ?>) object;
+            if (map.containsKey(name)) return map.get(name);
+            else
+                return Undefined;
+        } else {
+            Accessor accessor = this.accessors.get(name);
+            if (null != accessor) return accessor.get(object);
+            else
+                return Undefined;
+        }
+    }
+
+    /**
+     * @return Section of the property value, or null for none
+     */
+    private List<TemplateDataDictionary> rows(String sectionName, Object value) {
+
+        if (null == value || Boolean.FALSE.equals(value)) return null;
+        else if (value instanceof Iterable) {
+            List<TemplateDataDictionary> section = new ArrayList<TemplateDataDictionary>();
+            for (Object element : (Iterable<?>) value) {
+                if (null != element) section.add(this.row(sectionName, element));
+            }
+            return section.isEmpty() ? null : section;
+        } else if (value.getClass().isArray()) {
+            int count = Array.getLength(value);
+            List<TemplateDataDictionary> section = new ArrayList<TemplateDataDictionary>(count);
+            for (int cc = 0; cc < count; cc++) {
+                Object element = Array.get(value, cc);
+                if (null != element) section.add(this.row(sectionName, element));
+            }
+            return section.isEmpty() ? null : section;
+        } else if (IsScalar(value)) return this.show();
+        else {
+            List<TemplateDataDictionary> section = new ArrayList<TemplateDataDictionary>(1);
+            section.add(this.row(sectionName, value));
+            return section;
+        }
+    }
+
+    /**
+     * @return Dictionary of an element, with a scalar value named by the
+     *         section
+     */
+    private TemplateDataDictionary row(String sectionName, Object element) {
+        if (element instanceof TemplateDataDictionary)
+            return ((TemplateDataDictionary) element).clone(this);
+        else if (IsScalar(element)) {
+            TemplateDictionary row = new TemplateDictionary(this);
+            row.setVariable(sectionName, String.valueOf(element));
+            return row;
+        } else
+            return new ObjectDictionary(element, this);
+    }
+
+    private final static boolean IsScalar(Object value) {
+        return (value instanceof CharSequence || value instanceof Number
+            || value instanceof Boolean || value instanceof Character || value instanceof Enum
+            || value instanceof Date);
+    }
+
+    /**
+     * @return Accessors of the class, found once
+     */
+    private final static Map<String, Accessor> Accessors(Class<?> type) {
+        Map<String, Accessor> table = Tables.get(type);
+        if (null == table) {
+            table = Table(type);
+            Map<String, Accessor> existing = Tables.putIfAbsent(type, table);
+            if (null != existing) table = existing;
+        }
+        return table;
+    }
+
+    /**
+     * @return Accessors by property name, preferring getters to record
+     *         accessors to fields
+     */
+    private final static Map<String, Accessor> Table(Class<?> type) {
+
+        Map<String, Accessor> table = new HashMap<String, Accessor>();
+
+        Method[] methods = type.getMethods();
+        for (Method method : methods) {
+            if (IsAccessor(method)) {
+                String name = method.getName();
+                Class<?> returnType = method.getReturnType();
+                if (3 < name.length() && name.startsWith("get"))
+                    Define(table, Decapitalize(name.substring(3)), new MethodAccessor(method));
+
+                else if (2 < name.length() && name.startsWith("is")
+                    && (boolean.class == returnType || Boolean.class == returnType))
+
+                    Define(table, Decapitalize(name.substring(2)), new MethodAccessor(method));
+            }
+        }
+        for (Method method : methods) {
+            if (IsAccessor(method) && IsRecordAccessor(type, method))
+                Define(table, method.getName(), new MethodAccessor(method));
+        }
+        for (Field field : type.getFields()) {
+            if (!Modifier.isStatic(field.getModifiers()))
+                Define(table, field.getName(), new FieldAccessor(field));
+        }
+        return table;
+    }
+
+    private final static boolean IsAccessor(Method method) {
+        return (!Modifier.isStatic(method.getModifiers())
+            && 0 == method.getParameterTypes().length && void.class != method.getReturnType()
+            && Object.class != method.getDeclaringClass());
+    }
+
+    /**
+     * @return Method is named as a field of its return type
+     */
+    private final static boolean IsRecordAccessor(Class<?> type, Method method) {
+        String name = method.getName();
+        for (Class<?> c = type; null != c && Object.class != c; c = c.getSuperclass()) {
+            try {
+                Field field = c.getDeclaredField(name);
+                return (!Modifier.isStatic(field.getModifiers()) && field.getType() == method
+                    .getReturnType());
+            } catch (NoSuchFieldException notFound) {
+            }
+        }
+        return false;
+    }
+
+    private final static void Define(Map<String, Accessor> table, String name, Accessor accessor) {
+        if (!table.containsKey(name)) {
+            if (accessor instanceof MethodAccessor) {
+                Method method = ((MethodAccessor) accessor).method;
+                Method visible = Public(method.getDeclaringClass(), method);
+                if (null != visible) accessor = new MethodAccessor(visible);
+                else {
+                    /*
+                     * Public methods of classes not public, which modules
+                     * may deny
+                     */
+                    try {
+                        method.setAccessible(true);
+                    } catch (RuntimeException denied) {
+                    }
+                }
+            }
+            table.put(name, accessor);
+            String alias = Alias(name);
+            if (!table.containsKey(alias)) table.put(alias, accessor);
+        }
+    }
+
+    /**
+     * @return The method as declared by the type or its first public
+     *         superclass or interface declaring it, or null
+     */
+    private final static Method Public(Class<?> type, Method method) {
+        if (Modifier.isPublic(type.getModifiers())) {
+            try {
+                Method visible = type.getMethod(method.getName(), method.getParameterTypes());
+                if (Modifier.isPublic(visible.getDeclaringClass().getModifiers())) return visible;
+            } catch (NoSuchMethodException notFound) {
+                return null;
+            }
+        }
+        for (Class<?> iface : type.getInterfaces()) {
+            Method visible = Public(iface, method);
+            if (null != visible) return visible;
+        }
+        Class<?> superclass = type.getSuperclass();
+        if (null != superclass) return Public(superclass, method);
+        else
+            return null;
+    }
+
+    /**
+     * @return Property name, as "fooBar" for "FooBar", and "URL" for "URL"
+     */
+    private final static String Decapitalize(String name) {
+        if (1 < name.length() && Character.isUpperCase(name.charAt(0))
+            && Character.isUpperCase(name.charAt(1))) return name;
+        else
+            return Character.toLowerCase(name.charAt(0)) + name.substring(1);
+    }
+
+    /**
+     * @return Upper case name, as "FOO_BAR" for "fooBar"
+     */
+    private final static String Alias(String name) {
+        StringBuilder alias = new StringBuilder(name.length() + 4);
+        for (int cc = 0, count = name.length(); cc < count; cc++) {
+            char ch = name.charAt(cc);
+            if (0 < cc && Character.isUpperCase(ch)) {
+                char prev = name.charAt(cc - 1);
+                if (Character.isLowerCase(prev) || Character.isDigit(prev)) alias.append('_');
+            }
+            alias.append(Character.toUpperCase(ch));
+        }
+        return alias.toString();
+    }
+}
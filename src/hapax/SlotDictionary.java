@@ -0,0 +1,579 @@
+/*
+ * Hapax2
+ * Copyright (c) 2007 Doug Coker
+ * Copyright (c) 2009 John Pritchard
+ *
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hapax;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A data dictionary storing variables and sections in arrays indexed by
+ * their {@link SlotTable slot}, for templates reading them by the slots
+ * assigned by the parser.
+ *
+ * Variables inherited from ancestors are retained by each parent for its
+ * children, until the dictionary tree is modified, so that lookups from
+ * deep sections are independent of depth. Ancestors other than slot
+ * dictionaries are read by name, as are names without a slot once the slot
+ * table is full. While a tree is {@link #share shared} by the threads of a
+ * parallel render, variables are inherited without being retained.
+ *
+ * @author jdp
+ */
+public class SlotDictionary
+    implements TemplateDataDictionary {
+
+    /**
+     * Creates a top-level SlotDictionary.
+     *
+     * @return a new SlotDictionary
+     */
+    public static SlotDictionary create() {
+        return new SlotDictionary();
+    }
+
+    /**
+     * Modification count shared by a tree of slot dictionaries, and the
+     * number of parallel renders reading the tree.
+     */
+    private final static class Stamp {
+
+        int count;
+
+        volatile int shared;
+    }
+
+    /*
+     * Variable defined as null
+     */
+    private final static String Null = new String();
+
+    /*
+     * Variable not defined by ancestors
+     */
+    private final static String Missing = new String();
+
+    private final static String[] NoValues = {};
+
+    private final static Object[] NoSections = {};
+
+    protected TemplateDataDictionary parent;
+
+    private Stamp stamp;
+
+    /*
+     * Arrays indexed by slot hold the window of slots from their base that
+     * the dictionary uses, so that a row of a few names assigned late by the
+     * slot table has short arrays
+     */
+    private String[] values = NoValues;
+
+    private int valuesBase;
+
+    private Object[] sections = NoSections;
+
+    private int sectionsBase;
+
+    /*
+     * Variables inherited from slot dictionary ancestors, valid for a
+     * modification count, created on first use
+     */
+    private String[] memo;
+
+    private int memoBase;
+
+    private int memoed;
+
+    /*
+     * Variables and sections of names without a slot, created on first use
+     */
+    private CompactMap<String, String> named;
+
+    private CompactMap<String, List<TemplateDataDictionary>> namedSections;
+
+    public SlotDictionary() {
+        super();
+        this.stamp = new Stamp();
+    }
+
+    protected SlotDictionary(TemplateDataDictionary parent) {
+        super();
+        this.parent = parent;
+        if (parent instanceof SlotDictionary) this.stamp = ((SlotDictionary) parent).stamp;
+        else
+            this.stamp = new Stamp();
+    }
+
+    @Override
+    public TemplateDataDictionary getParent() {
+        return this.parent;
+    }
+
+    /**
+     * Called by template render.
+     */
+    @Override
+    public void renderComplete() {
+        this.parent = null;
+        this.values = NoValues;
+        this.memo = null;
+        for (Object section : this.sections) {
+            if (null != section) {
+                for (TemplateDataDictionary child : Section(section)) {
+                    child.renderComplete();
+                }
+            }
+        }
+        this.sections = NoSections;
+        this.named = null;
+        if (null != this.namedSections) {
+            for (List<TemplateDataDictionary> section : this.namedSections.values()) {
+                for (TemplateDataDictionary child : section) {
+                    child.renderComplete();
+                }
+            }
+            this.namedSections = null;
+        }
+    }
+
+    /**
+     * Deep clone of dictionary carries parent.
+     */
+    @Override
+    public TemplateDataDictionary clone() {
+        return this.copy(this.parent);
+    }
+
+    /**
+     * Deep clone replaces parent.
+     */
+    @Override
+    public TemplateDataDictionary clone(TemplateDataDictionary parent) {
+        if (null != parent) return this.copy(parent);
+        else
+            throw new IllegalStateException();
+    }
+
+    private SlotDictionary copy(TemplateDataDictionary parent) {
+        SlotDictionary clone = new SlotDictionary(parent);
+        clone.values = this.values.clone();
+        clone.valuesBase = this.valuesBase;
+        clone.sections = new Object[this.sections.length];
+        clone.sectionsBase = this.sectionsBase;
+        for (int index = 0, count = this.sections.length; index < count; index++) {
+            Object section = this.sections[index];
+            if (null != section)
+                clone.sections[index] = TemplateDictionary.SectionClone(clone, Section(section));
+        }
+        if (null != this.named) clone.named = new CompactMap<String, String>(this.named);
+        if (null != this.namedSections) {
+            clone.namedSections = new CompactMap<String, List<TemplateDataDictionary>>();
+            for (Map.Entry<String, List<TemplateDataDictionary>> entry : this.namedSections
+                .entrySet()) {
+                clone.namedSections.put(entry.getKey(), TemplateDictionary.SectionClone(clone,
+                    entry.getValue()));
+            }
+        }
+        return clone;
+    }
+
+    /*
+     * Variable API
+     */
+
+    @Override
+    public boolean hasVariable(String varName) {
+        int slot = SlotTable.Lookup(varName);
+        if (-1 < slot) return this.hasVariable(slot);
+        else {
+            TemplateDataDictionary dict = this;
+            while (dict instanceof SlotDictionary) {
+                SlotDictionary ancestor = (SlotDictionary) dict;
+                if (null != ancestor.named && ancestor.named.containsKey(varName)) return true;
+                else
+                    dict = ancestor.parent;
+            }
+            if (null != dict) return dict.hasVariable(varName);
+            else
+                return false;
+        }
+    }
+
+    public final boolean hasVariable(int slot) {
+        TemplateDataDictionary dict = this;
+        while (dict instanceof SlotDictionary) {
+            SlotDictionary ancestor = (SlotDictionary) dict;
+            int index = (slot - ancestor.valuesBase);
+            if (-1 < index && index < ancestor.values.length && null != ancestor.values[index])
+                return true;
+            else
+                dict = ancestor.parent;
+        }
+        if (null != dict) return dict.hasVariable(SlotTable.Name(slot));
+        else
+            return false;
+    }
+
+    @Override
+    public String getVariable(String varName) {
+        int slot = SlotTable.Lookup(varName);
+        if (-1 < slot) return this.getVariable(slot);
+        else {
+            TemplateDataDictionary dict = this;
+            while (dict instanceof SlotDictionary) {
+                SlotDictionary ancestor = (SlotDictionary) dict;
+                if (null != ancestor.named) {
+                    String value = ancestor.named.get(varName);
+                    if (null != value && Null != value) return value;
+                }
+                dict = ancestor.parent;
+            }
+            if (null != dict) return dict.getVariable(varName);
+            else
+                return "";
+        }
+    }
+
+    /**
+     * @return Variable value from this or parent
+     */
+    public final String getVariable(int slot) {
+
+        String value = this.value(slot);
+
+        if (null == value && this.parent instanceof SlotDictionary)
+
+            value = ((SlotDictionary) this.parent).resolve(slot);
+
+        if (null != value) return value;
+        else {
+            TemplateDataDictionary foreign = this.foreign();
+            if (null != foreign) return foreign.getVariable(SlotTable.Name(slot));
+            else
+                return "";
+        }
+    }
+
+    @Override
+    public void setVariable(String varName, String value) {
+        int slot = SlotTable.Slot(varName);
+        if (-1 < slot) this.setVariable(slot, value);
+        else {
+            if (null == this.named) this.named = new CompactMap<String, String>();
+
+            this.named.put(varName, (null == value) ? Null : value);
+        }
+    }
+
+    public final void setVariable(String varName, int value) {
+        this.setVariable(varName, String.valueOf(value));
+    }
+
+    public final void setVariable(int slot, String value) {
+        String[] values = this.values;
+        int base = this.valuesBase;
+        if (slot < base || slot >= (base + values.length)) {
+            int low = Low(base, values.length, slot);
+            String[] copy = new String[Length(base, values.length, low, slot)];
+            if (0 != values.length) System.arraycopy(values, 0, copy, (base - low), values.length);
+            values = copy;
+            base = low;
+            this.values = values;
+            this.valuesBase = base;
+        }
+        values[slot - base] = (null == value) ? Null : value;
+        this.stamp.count += 1;
+    }
+
+    /**
+     * @return Value defined here, or null
+     */
+    private String value(int slot) {
+        String[] values = this.values;
+        int index = (slot - this.valuesBase);
+        if (-1 < index && index < values.length) {
+            String value = values[index];
+            if (Null != value) return value;
+        }
+        return null;
+    }
+
+    /**
+     * @return Value defined here or by slot dictionary ancestors, or null
+     */
+    private String resolve(int slot) {
+
+        String value = this.value(slot);
+        if (null != value) return value;
+        else if (0 != this.stamp.shared && this.parent instanceof SlotDictionary)
+            return ((SlotDictionary) this.parent).resolve(slot);
+        else if (this.parent instanceof SlotDictionary) {
+            String[] memo = this.memo;
+            int base = this.memoBase;
+            int count = this.stamp.count;
+            if (null == memo) {
+                memo = new String[Length(base, 0, slot, slot)];
+                base = slot;
+                this.memo = memo;
+                this.memoBase = base;
+                this.memoed = count;
+            } else if (count != this.memoed) {
+                Arrays.fill(memo, null);
+                this.memoed = count;
+            }
+            if (slot < base || slot >= (base + memo.length)) {
+                int low = Low(base, memo.length, slot);
+                String[] copy = new String[Length(base, memo.length, low, slot)];
+                System.arraycopy(memo, 0, copy, (base - low), memo.length);
+                memo = copy;
+                base = low;
+                this.memo = memo;
+                this.memoBase = base;
+            }
+            value = memo[slot - base];
+            if (null == value) {
+                value = ((SlotDictionary) this.parent).resolve(slot);
+                memo[slot - base] = (null == value) ? Missing : value;
+            }
+            return (Missing == value) ? null : value;
+        } else
+            return null;
+    }
+
+    /**
+     * Stop retaining inherited variables in the tree of this dictionary,
+     * before its rows are rendered by other threads. Retained variables are
+     * plain fields written by readers, so a tree is not read concurrently
+     * between share and {@link #unshare}. Called by the parallel render of
+     * the template, before forking.
+     */
+    final void share() {
+        Stamp stamp = this.stamp;
+        synchronized (stamp) {
+            stamp.shared += 1;
+        }
+    }
+
+    /**
+     * Resume retaining inherited variables, after the threads of a parallel
+     * render are joined. Variables retained before are discarded, as the
+     * modification count is not maintained by concurrent writers.
+     */
+    final void unshare() {
+        Stamp stamp = this.stamp;
+        synchronized (stamp) {
+            stamp.shared -= 1;
+            stamp.count += 1;
+        }
+    }
+
+    /**
+     * @return Base of a window of the base and length grown to hold the slot
+     */
+    private final static int Low(int base, int length, int slot) {
+        if (0 == length) return slot;
+        else
+            return Math.min(base, slot);
+    }
+
+    /**
+     * Windows grow toward later slots geometrically, as names are commonly
+     * assigned slots in the order they are used.
+     *
+     * @return Length of a window of the base and length grown to hold the
+     *         slot, from the low slot
+     */
+    private final static int Length(int base, int length, int low, int slot) {
+        int high = (0 == length) ? (slot + 4) : Math.max(base + length, slot + 1);
+        if (slot >= (base + length)) high = Math.max(high, base + length + (length >> 1));
+        return (Math.min(high, SlotTable.Limit) - low);
+    }
+
+    /**
+     * @return First ancestor not a slot dictionary, or null
+     */
+    private TemplateDataDictionary foreign() {
+        TemplateDataDictionary dict = this.parent;
+        while (dict instanceof SlotDictionary) {
+            dict = ((SlotDictionary) dict).parent;
+        }
+        return dict;
+    }
+
+    /*
+     * Section API
+     */
+
+    /**
+     * @return a list of TemplateDictionaries that iterate the section, or null
+     *         for a section not visible.
+     */
+    @Override
+    public List<TemplateDataDictionary> getSection(String sectionName) {
+        return this.getSection(SlotTable.Slot(sectionName), sectionName);
+    }
+
+    /**
+     * @return a list of TemplateDictionaries that iterate the section, or null
+     *         for a section not visible.
+     */
+    public final List<TemplateDataDictionary> getSection(int slot) {
+        return this.getSection(slot, SlotTable.Name(slot));
+    }
+
+    /**
+     * @param slot
+     *            Slot of the section name, or negative one for none
+     */
+    private List<TemplateDataDictionary> getSection(int slot, String sectionName) {
+
+        List<TemplateDataDictionary> section = this.section(slot, sectionName);
+        if (null != section) return section;
+        else {
+            /*
+             * Inherit section
+             */
+            TemplateDataDictionary parent = this.parent;
+            if (null != parent) {
+                List<TemplateDataDictionary> ancestor;
+                if (parent instanceof SlotDictionary)
+                    ancestor = ((SlotDictionary) parent).getSection(slot, sectionName);
+                else
+                    ancestor = parent.getSection(sectionName);
+
+                if (null != ancestor) {
+                    section = TemplateDictionary.Under(ancestor, this);
+                    if (null == section) {
+                        section = new ArrayList<TemplateDataDictionary>(ancestor.size());
+                        for (TemplateDataDictionary child : ancestor) {
+                            section.add(child.clone(this));
+                        }
+                    }
+                    return this.define(slot, sectionName, section);
+                }
+            }
+            /*
+             * Synthesize section
+             */
+            if ((-1 < slot) ? this.hasVariable(slot) : this.hasVariable(sectionName))
+                return this.define(slot, sectionName, this.show());
+            else
+                return null;
+        }
+    }
+
+    /**
+     * @return A section data list having at least one section iteration data
+     *         dictionary.
+     */
+    @Override
+    public List<TemplateDataDictionary> showSection(String sectionName) {
+
+        int slot = SlotTable.Slot(sectionName);
+        List<TemplateDataDictionary> section = this.section(slot, sectionName);
+        if (null != section) return section;
+        else
+            return this.define(slot, sectionName, this.show());
+    }
+
+    @Override
+    public TemplateDataDictionary addSection(String sectionName) {
+
+        SlotDictionary add = new SlotDictionary(this);
+
+        int slot = SlotTable.Slot(sectionName);
+        List<TemplateDataDictionary> section = this.section(slot, sectionName);
+        if (null == section)
+            section = this.define(slot, sectionName, new ArrayList<TemplateDataDictionary>());
+
+        section.add(add);
+        return add;
+    }
+
+    public void hideSection(String sectionName) {
+        int slot = SlotTable.Lookup(sectionName);
+        if (-1 < slot) {
+            int index = (slot - this.sectionsBase);
+            if (-1 < index && index < this.sections.length) this.sections[index] = null;
+        } else if (null != this.namedSections)
+            this.namedSections.remove(sectionName);
+    }
+
+    /**
+     * @return Section defined here, or null
+     */
+    private List<TemplateDataDictionary> section(int slot, String sectionName) {
+        if (-1 < slot) {
+            Object[] sections = this.sections;
+            int index = (slot - this.sectionsBase);
+            if (-1 < index && index < sections.length) {
+                Object section = sections[index];
+                if (null != section) return Section(section);
+            }
+            return null;
+        } else if (null != this.namedSections)
+            return this.namedSections.get(sectionName);
+        else
+            return null;
+    }
+
+    private List<TemplateDataDictionary> define(int slot, String sectionName,
+        List<TemplateDataDictionary> section) {
+        if (-1 < slot) {
+            Object[] sections = this.sections;
+            int base = this.sectionsBase;
+            if (slot < base || slot >= (base + sections.length)) {
+                int low = Low(base, sections.length, slot);
+                Object[] copy = new Object[Length(base, sections.length, low, slot)];
+                if (0 != sections.length)
+                    System.arraycopy(sections, 0, copy, (base - low), sections.length);
+                sections = copy;
+                base = low;
+                this.sections = sections;
+                this.sectionsBase = base;
+            }
+            sections[slot - base] = section;
+        } else {
+            if (null == this.namedSections)
+                this.namedSections = new CompactMap<String, List<TemplateDataDictionary>>();
+
+            this.namedSections.put(sectionName, section);
+        }
+        return section;
+    }
+
+    private List<TemplateDataDictionary> show() {
+        List<TemplateDataDictionary> section = new ArrayList<TemplateDataDictionary>(1);
+        section.add(new SlotDictionary(this));
+        return section;
+    }
+
+    @SuppressWarnings("unchecked")
+    private final static List<TemplateDataDictionary> Section(Object section) {
+        return (List<TemplateDataDictionary>) section;
+    }
+}
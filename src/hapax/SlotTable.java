@@ -0,0 +1,118 @@
+/*
+ * Hapax2
+ * Copyright (c) 2007 Doug Coker
+ * Copyright (c) 2009 John Pritchard
+ *
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hapax;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Dense integer slots of variable and section names, assigned by the parser
+ * to the names used in templates, and by {@link SlotDictionary} to the names
+ * it defines.
+ *
+ * Slots are shared by all templates, so a template and its includes agree
+ * without linking. Names are retained for the life of the class, up to the
+ * {@link #Limit} count of slots. Names first used after that have no slot,
+ * and are read and written by name.
+ *
+ * @author jdp
+ */
+public final class SlotTable {
+
+    /**
+     * Maximum number of slots
+     */
+    public final static int Limit = 0x2000;
+
+    private final static ConcurrentMap<String, Integer> Slots = new ConcurrentHashMap<String, Integer>();
+
+    /*
+     * Names by slot, replaced when grown
+     */
+    private volatile static String[] Names = new String[64];
+
+    private volatile static int Count;
+
+    /**
+     * @return Slot of the name, assigned on first use, or negative one for a
+     *         name without a slot, when the table is full
+     */
+    public final static int Slot(String name) {
+        Integer slot = Slots.get(name);
+        if (null != slot) return slot.intValue();
+        else {
+            synchronized (Slots) {
+                slot = Slots.get(name);
+                if (null == slot) {
+                    int count = Count;
+                    if (count == Limit) return -1;
+
+                    String[] names = Names;
+                    if (count == names.length) {
+                        String[] copy = new String[count * 2];
+                        System.arraycopy(names, 0, copy, 0, count);
+                        names = copy;
+                    }
+                    names[count] = name;
+                    Names = names;
+                    Count = (count + 1);
+
+                    slot = Integer.valueOf(count);
+                    Slots.put(name, slot);
+                }
+                return slot.intValue();
+            }
+        }
+    }
+
+    /**
+     * @return Slot of the name, or negative one for a name not assigned
+     */
+    public final static int Lookup(String name) {
+        Integer slot = Slots.get(name);
+        if (null != slot) return slot.intValue();
+        else
+            return -1;
+    }
+
+    /**
+     * @return Name of an assigned slot
+     */
+    public final static String Name(int slot) {
+        return Names[slot];
+    }
+
+    /**
+     * @return Number of slots assigned
+     */
+    public final static int Count() {
+        return Count;
+    }
+
+    private SlotTable() {
+        super();
+    }
+}
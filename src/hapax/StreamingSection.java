@@ -0,0 +1,191 @@
+/*
+ * Hapax2
+ * Copyright (c) 2007 Doug Coker
+ * Copyright (c) 2009 John Pritchard
+ *
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hapax;
+
+import java.util.AbstractList;
+
+/**
+ * A section of rows pulled from an iterator as rendered, for result sets
+ * rendered in constant memory. The {@link Template} renders each row with
+ * one row of lookahead to define its iteration sections, and completes it
+ * when rendered.
+ *
+ * The rows are consumed once, by the first rendering of the section, and
+ * no rows hide the section. A section defined in a dictionary is a view of
+ * the rows under the dictionary, sharing them with clones of the
+ * dictionary. Rows without a parent are adopted by the dictionary, and
+ * others are cloned under it.
+ *
+ * As a list, the section has the rows pulled so far, those rendered and one
+ * row of lookahead, so that it is empty only for an iterator without rows.
+ * Only the lookahead row is an element, and rows can't be added. A
+ * dictionary having the section has no fragment content and can't be
+ * frozen.
+ *
+ * @author jdp
+ */
+public final class StreamingSection extends AbstractList<TemplateDataDictionary> {
+
+    /**
+     * Rows shared by views.
+     */
+    private final static class Source {
+
+        final java.util.Iterator<? extends TemplateDataDictionary> rows;
+
+        boolean started;
+
+        TemplateDataDictionary pending;
+
+        int index;
+
+        Source(java.util.Iterator<? extends TemplateDataDictionary> rows) {
+            super();
+            this.rows = rows;
+        }
+    }
+
+    private final Source source;
+
+    /*
+     * Parent of the rows
+     */
+    private final TemplateDataDictionary parent;
+
+    public StreamingSection(java.util.Iterator<? extends TemplateDataDictionary> rows) {
+        this(new Source(rows), null);
+        if (null == rows) throw new IllegalArgumentException();
+    }
+
+    private StreamingSection(Source source, TemplateDataDictionary parent) {
+        super();
+        this.source = source;
+        this.parent = parent;
+    }
+
+    /**
+     * @return Next row with its iteration sections defined, or null
+     */
+    public TemplateDataDictionary next(String sectionName) {
+        Source source = this.source;
+        TemplateDataDictionary row = Lookahead(source);
+        if (null == row) return null;
+        else {
+            TemplateDataDictionary next = Pull(source.rows);
+            source.pending = next;
+            int cc = source.index++;
+
+            row = this.adopt(row);
+
+            Iterator.Define(row, sectionName, cc, (null == next) ? (cc + 1) : (cc + 2));
+
+            return row;
+        }
+    }
+
+    /**
+     * @return The row of lookahead, not yet rendered
+     * @exception UnsupportedOperationException
+     *                Row rendered
+     * @exception IndexOutOfBoundsException
+     *                Row not pulled
+     */
+    @Override
+    public TemplateDataDictionary get(int index) {
+        Source source = this.source;
+        TemplateDataDictionary row = Lookahead(source);
+        if (index == source.index && null != row) return row;
+        else if (-1 < index && index < source.index)
+            throw new UnsupportedOperationException("Streaming section row " + index
+                + " rendered");
+        else
+            throw new IndexOutOfBoundsException(String.valueOf(index));
+    }
+
+    /**
+     * @return Number of rows pulled, those rendered and one of lookahead
+     */
+    @Override
+    public int size() {
+        Source source = this.source;
+        if (null != Lookahead(source)) return (source.index + 1);
+        else
+            return source.index;
+    }
+
+    /**
+     * @exception UnsupportedOperationException
+     *                Rows can't be added to a streaming section
+     */
+    @Override
+    public void add(int index, TemplateDataDictionary row) {
+        throw new UnsupportedOperationException("Rows can't be added to a streaming section");
+    }
+
+    /**
+     * @return View of the rows under the parent
+     */
+    StreamingSection under(TemplateDataDictionary parent) {
+        return new StreamingSection(this.source, parent);
+    }
+
+    private TemplateDataDictionary adopt(TemplateDataDictionary row) {
+        TemplateDataDictionary parent = this.parent;
+        if (null == parent) return row;
+        else {
+            TemplateDataDictionary rowParent = row.getParent();
+            if (null == rowParent && row instanceof TemplateDictionary) {
+                ((TemplateDictionary) row).parent = parent;
+                return row;
+            } else if (parent != rowParent) return row.clone(parent);
+            else
+                return row;
+        }
+    }
+
+    /**
+     * @return Row of lookahead, pulled on first use, or null
+     */
+    private final static TemplateDataDictionary Lookahead(Source source) {
+        if (!source.started) {
+            source.started = true;
+            source.pending = Pull(source.rows);
+        }
+        return source.pending;
+    }
+
+    /**
+     * @return Next row not null, or null
+     */
+    private final static TemplateDataDictionary Pull(
+        java.util.Iterator<? extends TemplateDataDictionary> rows) {
+        while (rows.hasNext()) {
+            TemplateDataDictionary row = rows.next();
+            if (null != row) return row;
+        }
+        return null;
+    }
+}
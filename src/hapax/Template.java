@@ -25,14 +25,30 @@
  */
 package hapax;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
-import java.io.StringWriter;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import hapax.parser.CTemplateParser;
+import hapax.parser.IncludeNode;
 import hapax.parser.SectionNode;
 import hapax.parser.TemplateNode;
 import hapax.parser.TemplateParser;
+import hapax.parser.TemplateStreamParser;
 
 /**
  * Template executes the program defined by the tmpl_ list. The list itself is
@@ -40,10 +56,24 @@ import hapax.parser.TemplateParser;
  * constructing a Template directly, use an implementation of
  * {@link TemplateLoader} such as {@link TemplateCache}.
  *
+ * The list is a tree: each {@link SectionNode} owns the array of nodes in its
+ * body, validated by the parser. Rendering iterates these arrays directly.
+ *
+ * Output is written to a {@link TemplateOutput}, without the locking of
+ * {@link PrintWriter} unless one is given to render. The byte oriented render
+ * methods copy static text from encodings cached by the text nodes, and only
+ * encode variable values at render time.
+ *
+ * The iterations of large sections may be rendered concurrently, see
+ * {@link #setParallelSections(ExecutorService,int,String[])}.
+ *
  * @author dcoker
  * @author jdp
  */
 public final class Template {
+
+    public final static Charset UTF8 = Charset.forName("UTF-8");
+
     /**
      * Parse and render a C template.
      */
@@ -53,9 +83,71 @@ public final class Template {
         return template.renderToString(dict);
     }
 
+    /**
+     * Parallel section rendering configuration.
+     */
+    private final static class Parallel {
+
+        final ExecutorService executor;
+
+        final int threshold;
+
+        final Set<String> sections;
+
+        Parallel(ExecutorService executor, int threshold, String[] sections) {
+            super();
+            this.executor = executor;
+            this.threshold = threshold;
+            this.sections = new HashSet<String>();
+            for (String section : sections) {
+                this.sections.add(section);
+            }
+        }
+
+        boolean accept(String sectionName, int count) {
+            if (2 > count) return false;
+            else if (0 < this.threshold && count >= this.threshold) return true;
+            else
+                return this.sections.contains(sectionName);
+        }
+    }
+
+    /**
+     * Renders a range of section iterations into a buffer.
+     */
+    private final class Rows implements Callable<StringBuilder> {
+
+        private final TemplateNode[] body;
+
+        private final List<TemplateDataDictionary> data;
+
+        private final int from, to;
+
+        Rows(TemplateNode[] body, List<TemplateDataDictionary> data, int from, int to) {
+            super();
+            this.body = body;
+            this.data = data;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public StringBuilder call() throws TemplateException {
+            TemplateOutput.Text out = new TemplateOutput.Text();
+            for (int cc = this.from; cc < this.to; cc++) {
+
+                Template.this.render(this.body, this.data.get(cc), out, null);
+            }
+            return out.getBuffer();
+        }
+    }
+
     private final long lastModified;
-    private final List<TemplateNode> template;
+    private final TemplateNode[] template;
+    private final String[] references;
     private final TemplateLoader context;
+    private volatile Parallel parallel;
+    private volatile FragmentCache fragments;
 
     public Template(String template, TemplateLoader context) throws TemplateException {
         this(0L, template, context);
@@ -76,13 +168,92 @@ public final class Template {
         this(lastModified, parser.parse(context, template), context);
     }
 
-    private Template(long lastModified, List<TemplateNode> tmpl, TemplateLoader context) {
+    /**
+     * Parse template source from a reader, incrementally when the parser is a
+     * {@link TemplateStreamParser}. The caller closes the reader.
+     */
+    public Template(long lastModified, Reader template, TemplateLoader context)
+        throws TemplateException {
+        this(lastModified, CTemplateParser.Instance, template, context);
+    }
+
+    /**
+     * Parse template source from a reader, incrementally when the parser is a
+     * {@link TemplateStreamParser}. The caller closes the reader.
+     */
+    public Template(long lastModified, TemplateParser parser, Reader template,
+        TemplateLoader context) throws TemplateException {
+        this(lastModified, Parse(parser, template, context), context);
+    }
+
+    /**
+     * Template from parsed or precompiled nodes.
+     */
+    public Template(long lastModified, List<TemplateNode> tmpl, TemplateLoader context) {
         super();
         this.lastModified = lastModified;
-        this.template = tmpl;
+        this.template = tmpl.toArray(new TemplateNode[tmpl.size()]);
+        this.references = TemplateNode.References(this.template);
         this.context = context;
     }
 
+    /**
+     * Render the iterations of sections concurrently, in the executor, when
+     * the section is named or has at least the threshold count of rows. The
+     * iterations are split into ranges rendered into separate buffers, which
+     * are written in order. Iteration sections are defined as in sequential
+     * rendering.
+     *
+     * Section bodies containing includes are rendered sequentially, as are
+     * sections nested in a concurrent iteration. Flush points in concurrent
+     * iterations are ignored. The dictionaries of concurrent iterations must
+     * not be modified by other threads during rendering.
+     *
+     * @param executor
+     *            Executor for concurrent rendering, or null to disable
+     * @param threshold
+     *            Minimum count of rows for any section, or zero for named
+     *            sections only
+     * @param sections
+     *            Section names
+     */
+    public void setParallelSections(ExecutorService executor, int threshold, String... sections) {
+        if (null == executor) this.parallel = null;
+        else if (0 > threshold) throw new IllegalArgumentException();
+        else
+            this.parallel = new Parallel(executor, threshold, sections);
+    }
+
+    /**
+     * @return Names referenced by this template, as by
+     *         {@link TemplateNode#References}
+     */
+    public String[] getReferences() {
+        return this.references;
+    }
+
+    /**
+     * @return Parsed template, not to be modified
+     */
+    TemplateNode[] getNodes() {
+        return this.template;
+    }
+
+    public FragmentCache getFragmentCache() {
+        return this.fragments;
+    }
+
+    /**
+     * Cache the rendered output of the sections of this template, and of
+     * includes of this template, named by the fragment cache.
+     *
+     * @param fragments
+     *            Fragment cache, or null to disable
+     */
+    public void setFragmentCache(FragmentCache fragments) {
+        this.fragments = fragments;
+    }
+
     public boolean hasLastModified() {
         return (0L < this.lastModified);
     }
@@ -92,37 +263,138 @@ public final class Template {
     }
 
     public void render(TemplateDataDictionary dict, PrintWriter writer) throws TemplateException {
+        this.render(dict, new TemplateOutput.Chars(writer));
+    }
+
+    /**
+     * Render to a character target, for example a {@link StringBuilder}.
+     */
+    public void render(TemplateDataDictionary dict, Appendable out) throws TemplateException {
+        if (out instanceof StringBuilder)
+            this.render(dict, new TemplateOutput.Text((StringBuilder) out));
+        else
+            this.render(dict, new TemplateOutput.Chars(out));
+    }
+
+    /**
+     * Render UTF-8 to the stream. The stream is flushed, and not closed.
+     */
+    public void render(TemplateDataDictionary dict, OutputStream out) throws TemplateException {
+        this.render(dict, out, UTF8);
+    }
+
+    /**
+     * Render to the stream in the charset. The stream is flushed, and not
+     * closed.
+     */
+    public void render(TemplateDataDictionary dict, OutputStream out, Charset charset)
+        throws TemplateException {
+        TemplateOutput output = new TemplateOutput.Bytes(out, charset);
         try {
-            this.render(Top, this.template, dict, writer);
+            this.render(this.template, dict, output, this.parallel);
+
+            output.flush();
         } finally {
             dict.renderComplete();
         }
     }
 
-    public String renderToString(TemplateDataDictionary dict) throws TemplateException {
+    /**
+     * Streaming render to the stream in the charset, flushing after each
+     * threshold of output characters and at <code>{{%flush}}</code> points in
+     * the template. The stream is not closed.
+     *
+     * @param backpressure
+     *            Optional callback after each flush
+     */
+    public void render(TemplateDataDictionary dict, OutputStream out, Charset charset,
+        int threshold, TemplateOutput.Backpressure backpressure) throws TemplateException {
+        TemplateOutput output = new TemplateOutput.Streaming(new TemplateOutput.Bytes(out,
+            charset), threshold, backpressure);
+        try {
+            this.render(this.template, dict, output, this.parallel);
+
+            output.flush();
+        } finally {
+            dict.renderComplete();
+        }
+    }
+
+    /**
+     * Render UTF-8 into the buffer from its position.
+     *
+     * @throws TemplateException Output exceeds the remaining space in the
+     *             buffer.
+     */
+    public void render(TemplateDataDictionary dict, ByteBuffer out) throws TemplateException {
+        this.render(dict, out, UTF8);
+    }
+
+    /**
+     * Render into the buffer from its position in the charset.
+     *
+     * @throws TemplateException Output exceeds the remaining space in the
+     *             buffer.
+     */
+    public void render(TemplateDataDictionary dict, ByteBuffer out, Charset charset)
+        throws TemplateException {
+        this.render(dict, new TemplateOutput.Buffer(out, charset));
+    }
+
+    /**
+     * Render UTF-8 to the blocking channel with gathering writes. The channel
+     * is not closed.
+     */
+    public void render(TemplateDataDictionary dict, GatheringByteChannel out)
+        throws TemplateException {
+        this.render(dict, out, UTF8);
+    }
+
+    /**
+     * Render to the blocking channel in the charset with gathering writes.
+     * Static text is written from buffers shared by all renderings. The
+     * channel is not closed.
+     */
+    public void render(TemplateDataDictionary dict, GatheringByteChannel out, Charset charset)
+        throws TemplateException {
+        TemplateOutput.Channel output = new TemplateOutput.Channel(out, charset);
         try {
-            StringWriter buffer = new StringWriter();
+            this.render(this.template, dict, output, this.parallel);
 
-            this.render(Top, this.template, dict, (new PrintWriter(buffer)));
+            output.flush();
+        } finally {
+            output.release();
+            dict.renderComplete();
+        }
+    }
 
-            return buffer.toString();
+    public void render(TemplateDataDictionary dict, TemplateOutput out) throws TemplateException {
+        try {
+            this.render(this.template, dict, out, this.parallel);
         } finally {
             dict.renderComplete();
         }
     }
 
-    private void render(int offset, List<TemplateNode> template, TemplateDataDictionary dict,
-        PrintWriter writer) throws TemplateException {
-        for (int position = 0, count = template.size(); position < count; position++) {
+    public String renderToString(TemplateDataDictionary dict) throws TemplateException {
+        TemplateOutput.Text buffer = new TemplateOutput.Text();
+
+        this.render(dict, buffer);
 
-            TemplateNode node = template.get(position);
+        return buffer.toString();
+    }
+
+    private void render(TemplateNode[] template, TemplateDataDictionary dict,
+        TemplateOutput writer, Parallel parallel) throws TemplateException {
+        for (int position = 0, count = template.length; position < count; position++) {
+
+            TemplateNode node = template[position];
 
             switch (node.getTemplateType()) {
 
                 case TemplateTypeSection:
 
-                    position = this.renderSectionNode(offset, template, dict, position,
-                        ((SectionNode) node), writer);
+                    this.renderSectionNode(dict, ((SectionNode) node), writer, parallel);
                     break;
 
                 default:
@@ -132,46 +404,228 @@ public final class Template {
         }
     }
 
-    private int renderSectionNode(int offset, List<TemplateNode> template,
-        TemplateDataDictionary dict, int open, SectionNode section, PrintWriter writer)
-            throws TemplateException {
-        int next = (open + 1);
-        int close = (open + section.getIndexOfCloseRelative());
+    private void renderSectionNode(TemplateDataDictionary dict, SectionNode section,
+        TemplateOutput writer, Parallel parallel) throws TemplateException {
 
-        if (close >= next && close < template.size()) {
+        String sectionName = section.getSectionName();
 
-            String sectionName = section.getSectionName();
+        List<TemplateDataDictionary> data;
+        if (dict instanceof SlotDictionary && -1 < section.getSectionSlot())
+            data = ((SlotDictionary) dict).getSection(section.getSectionSlot());
+        else
+            data = dict.getSection(sectionName);
 
-            List<TemplateDataDictionary> data = dict.getSection(sectionName);
+        if (null != data) {
 
-            if (null != data) {
+            FragmentCache fragments = this.fragments;
+            if (null != fragments && fragments.accept(sectionName)) {
 
-                if (data.size() == 0) {
+                String content = FragmentCache.Content(dict, sectionName, section
+                    .getReferences());
+                if (null != content) {
 
-                    Iterator.Define(dict, sectionName, 0, 1);
-                    /*
-                     * Once
-                     */
-                    this.render(next, template.subList(next, close), dict, writer);
-                } else {
-                    /*
-                     * Repeat
-                     */
-                    for (int cc = 0, count = data.size(); cc < count; cc++) {
+                    String fragment = fragments.get(this, section, content);
+                    if (null == fragment) {
+                        TemplateOutput.Text buffer = new TemplateOutput.Text();
 
-                        TemplateDataDictionary child = data.get(cc);
+                        this.renderSection(sectionName, section, data, dict, buffer, parallel);
 
-                        Iterator.Define(child, sectionName, cc, count);
+                        fragment = buffer.toString();
+                        fragments.put(this, section, content, fragment);
+                    } else
+                        FragmentCache.Hit(dict, sectionName, data, section);
 
-                        this.render(next, template.subList(next, close), child, writer);
-                    }
+                    writer.write(fragment);
+                    return;
                 }
             }
-            return close;
-        } else
-            throw new TemplateException("Missing close tag for section '" + section.getSectionName()
-                + "' at line " + section.lineNumber + ".");
+            this.renderSection(sectionName, section, data, dict, writer, parallel);
+        }
     }
 
-    private final static int Top = 0;
+    private void renderSection(String sectionName, SectionNode section,
+        List<TemplateDataDictionary> data, TemplateDataDictionary dict, TemplateOutput writer,
+        Parallel parallel) throws TemplateException {
+        TemplateNode[] body = section.getChildren();
+
+        if (data instanceof StreamingSection) {
+            /*
+             * Rows pulled and completed in turn
+             */
+            StreamingSection rows = (StreamingSection) data;
+            TemplateDataDictionary child;
+            while (null != (child = rows.next(sectionName))) {
+                try {
+                    if (section.isConstant()) body[0].evaluate(dict, this.context, writer);
+                    else
+                        this.render(body, child, writer, parallel);
+                } finally {
+                    child.renderComplete();
+                }
+            }
+        } else if (section.isConstant()) {
+            /*
+             * Optimized text body without iteration sections
+             */
+            TemplateNode text = body[0];
+            for (int cc = 0, count = Math.max(1, data.size()); cc < count; cc++) {
+
+                text.evaluate(dict, this.context, writer);
+            }
+        } else if (data.size() == 0) {
+
+            Iterator.Define(dict, sectionName, 0, 1);
+            /*
+             * Once
+             */
+            this.render(body, dict, writer, parallel);
+        } else if (null != parallel && parallel.accept(sectionName, data.size())
+            && !HasInclude(body)) {
+
+            this.renderParallel(sectionName, data, body, writer, parallel);
+        } else if (data instanceof ColumnarSection) {
+            /*
+             * Repeat with a row cursor
+             */
+            ColumnarSection.Row row = ((ColumnarSection) data).cursor();
+
+            for (int cc = 0, count = data.size(); cc < count; cc++) {
+
+                row.move(cc);
+
+                Iterator.Define(row, sectionName, cc, count);
+
+                this.render(body, row, writer, parallel);
+            }
+        } else {
+            /*
+             * Repeat
+             */
+            for (int cc = 0, count = data.size(); cc < count; cc++) {
+
+                TemplateDataDictionary child = data.get(cc);
+
+                Iterator.Define(child, sectionName, cc, count);
+
+                this.render(body, child, writer, parallel);
+            }
+        }
+    }
+
+    private void renderParallel(String sectionName, List<TemplateDataDictionary> data,
+        TemplateNode[] body, TemplateOutput writer, Parallel parallel) throws TemplateException {
+
+        int count = data.size();
+        /*
+         * Define iteration sections, and resolve the sections visible to the
+         * body in the parents of the iterations, before forking. Concurrent
+         * iterations then only read shared dictionaries, as section
+         * inheritance is cached in the inheriting dictionary.
+         */
+        Set<String> names = new HashSet<String>();
+        SectionNames(sectionName, names);
+        SectionNames(body, names);
+
+        Map<TemplateDataDictionary, Boolean> parents = new IdentityHashMap<TemplateDataDictionary, Boolean>();
+
+        for (int cc = 0; cc < count; cc++) {
+
+            TemplateDataDictionary child = data.get(cc);
+
+            Iterator.Define(child, sectionName, cc, count);
+
+            TemplateDataDictionary parent = child.getParent();
+            if (null != parent && null == parents.put(parent, Boolean.TRUE)) {
+                for (String name : names) {
+                    parent.getSection(name);
+                }
+            }
+        }
+        /*
+         * Slot dictionaries don't retain inherited variables while shared
+         */
+        for (TemplateDataDictionary parent : parents.keySet()) {
+            if (parent instanceof SlotDictionary) ((SlotDictionary) parent).share();
+        }
+        /*
+         * Ranges in order
+         */
+        int ranges = Math.min(count, (4 * Runtime.getRuntime().availableProcessors()));
+        List<Future<StringBuilder>> futures = new ArrayList<Future<StringBuilder>>(ranges);
+        try {
+            for (int range = 0; range < ranges; range++) {
+                int from = (int) (((long) count * range) / ranges);
+                int to = (int) (((long) count * (range + 1)) / ranges);
+
+                futures.add(parallel.executor.submit(new Rows(body, data, from, to)));
+            }
+            for (Future<StringBuilder> future : futures) {
+
+                writer.write(future.get().toString());
+            }
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+            throw new TemplateException(exc);
+        } catch (ExecutionException exc) {
+            Throwable cause = exc.getCause();
+            if (cause instanceof TemplateException) throw (TemplateException) cause;
+            else if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            else if (cause instanceof Error) throw (Error) cause;
+            else
+                throw new TemplateException(cause);
+        } finally {
+            for (Future<StringBuilder> future : futures) {
+                future.cancel(true);
+            }
+            for (TemplateDataDictionary parent : parents.keySet()) {
+                if (parent instanceof SlotDictionary) ((SlotDictionary) parent).unshare();
+            }
+        }
+    }
+
+    private final static boolean HasInclude(TemplateNode[] template) {
+        for (TemplateNode node : template) {
+            if (node instanceof IncludeNode) return true;
+            else if (node instanceof SectionNode && HasInclude(((SectionNode) node).getChildren()))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Collect the section names in the template, with their iteration
+     * sections.
+     */
+    private final static void SectionNames(TemplateNode[] template, Set<String> names) {
+        for (TemplateNode node : template) {
+            if (node instanceof SectionNode) {
+                SectionNode section = (SectionNode) node;
+                SectionNames(section.getSectionName(), names);
+                SectionNames(section.getChildren(), names);
+            }
+        }
+    }
+
+    private final static void SectionNames(String sectionName, Set<String> names) {
+        names.add(sectionName);
+        names.add(sectionName + Iterator.Suffix.First);
+        names.add(sectionName + Iterator.Suffix.NotFirst);
+        names.add(sectionName + Iterator.Suffix.Last);
+        names.add(sectionName + Iterator.Suffix.NotLast);
+        names.add(sectionName + Iterator.Suffix.Exclusive);
+    }
+
+    private final static List<TemplateNode> Parse(TemplateParser parser, Reader template,
+        TemplateLoader context) throws TemplateException {
+        if (parser instanceof TemplateStreamParser)
+
+            return ((TemplateStreamParser) parser).parse(context, template);
+        else {
+            try {
+                return parser.parse(context, TemplateCache.readToString(template));
+            } catch (IOException exc) {
+                throw new TemplateException(exc);
+            }
+        }
+    }
 }
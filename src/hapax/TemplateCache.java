@@ -26,17 +26,28 @@
 package hapax;
 
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.Reader;
 import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import javax.xml.transform.Templates;
 
+import hapax.parser.CTemplateParser;
+import hapax.parser.PrecompiledTemplate;
+import hapax.parser.Strip;
 import hapax.parser.TemplateParser;
+import hapax.parser.TemplateParserException;
 
 /**
  * An in-memory cache of parsed {@link Templates} intended to be shared across
@@ -61,12 +72,24 @@ public class TemplateCache extends Object implements TemplateLoader {
         return new TemplateCache(base_path, parser);
     }
 
+    /**
+     * Creates a TemplateLoader for CTemplate language, compacting template
+     * text whitespace.
+     */
+    public static TemplateLoader create(String base_path, Strip strip) {
+        return new TemplateCache(base_path, new CTemplateParser(strip));
+    }
+
+    private final static Logger Log = Logger.getLogger(TemplateCache.class.getName());
+
     protected final Map<String, Template> cache = new LinkedHashMap<String, Template>();
 
     protected final String baseDir;
 
     protected final TemplateParser parser;
 
+    private volatile FragmentCache fragments;
+
     public TemplateCache(String baseDir) {
         super();
         this.baseDir = baseDir;
@@ -79,6 +102,26 @@ public class TemplateCache extends Object implements TemplateLoader {
         this.parser = parser;
     }
 
+    public FragmentCache getFragmentCache() {
+        return this.fragments;
+    }
+
+    /**
+     * Apply the fragment cache to templates loaded from this cache. The
+     * fragments of a template are invalidated when it's reloaded.
+     *
+     * @param fragments
+     *            Fragment cache, or null to disable
+     */
+    public void setFragmentCache(FragmentCache fragments) {
+        synchronized (this.cache) {
+            this.fragments = fragments;
+            for (Template template : this.cache.values()) {
+                template.setFragmentCache(fragments);
+            }
+        }
+    }
+
     @Override
     public String getTemplateDirectory() {
         return this.baseDir;
@@ -126,63 +169,105 @@ public class TemplateCache extends Object implements TemplateLoader {
 
         TemplateLoader context = new TemplateLoader.Context(this, parent);
 
-        String contents;
-
         InputStream in = null;
         try {
             in = url.openStream();
 
-            contents = readToString(new java.io.InputStreamReader(in));
+            Template template = this.parse(0L, new InputStreamReader(in), context);
+            template.setFragmentCache(this.fragments);
+            return template;
         } catch (IOException exc) {
             throw new TemplateException(url.toString(), exc);
         } finally {
-            try {
-                in.close();
-            } catch (IOException ignore) {
+            if (null != in) {
+                try {
+                    in.close();
+                } catch (IOException ignore) {
+                }
             }
         }
-
-        TemplateParser parser = this.parser;
-
-        if (null == parser) return (new Template(contents, context));
-        else
-            return (new Template(parser, contents, context));
     }
 
     protected Template read(File file, long fileLast) throws TemplateException {
         TemplateLoader context = new TemplateLoader.Context(this, file.getParent());
 
-        String contents;
+        Template template = this.readPrecompiled(file, fileLast, context);
+        if (null != template) return this.cache(file.getPath(), template);
 
-        FileReader reader = null;
+        FileInputStream in = null;
         try {
-            reader = new FileReader(file);
+            in = new FileInputStream(file);
+
+            CharsetDecoder decoder = Charset.defaultCharset().newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+            Reader reader = Channels.newReader(in.getChannel(), decoder, -1);
 
-            contents = readToString(reader);
+            template = this.parse(fileLast, reader, context);
         } catch (IOException exc) {
             throw new TemplateException(file.getPath(), exc);
         } finally {
-            if (null != reader) {
+            if (null != in) {
                 try {
-                    reader.close();
+                    in.close();
                 } catch (IOException ignore) {
                 }
             }
         }
 
-        Template template;
-
-        TemplateParser parser = this.parser;
-        if (null == parser) template = new Template(fileLast, contents, context);
-        else
-            template = new Template(fileLast, parser, contents, context);
+        return this.cache(file.getPath(), template);
+    }
 
+    /**
+     * Cache a loaded template, invalidating the fragments of the template it
+     * replaces.
+     */
+    protected Template cache(String filename, Template template) {
         synchronized (this.cache) {
-            this.cache.put(file.getPath(), template);
+            FragmentCache fragments = this.fragments;
+            template.setFragmentCache(fragments);
+
+            Template previous = this.cache.put(filename, template);
+            if (null != previous && null != fragments) fragments.invalidate(previous);
         }
         return template;
     }
 
+    /**
+     * Decode the precompiled template file next to the source when it is at
+     * least as recent as the source, and was produced by
+     * {@link PrecompiledTemplate} with the strip mode and optimizer of the
+     * parser of this cache.
+     *
+     * @return Null for no usable precompiled file
+     */
+    protected Template readPrecompiled(File file, long fileLast, TemplateLoader context) {
+        File compiled = new File(file.getPath() + 'c');
+        if (compiled.lastModified() >= fileLast && compiled.isFile()) {
+            try {
+                return new Template(fileLast, PrecompiledTemplate.Read(compiled, this.parser), context);
+            } catch (IOException exc) {
+                return null;
+            } catch (TemplateParserException exc) {
+                Log.log(Level.WARNING, "Parsing " + file + " in place of " + compiled, exc);
+                return null;
+            }
+        } else
+            return null;
+    }
+
+    /**
+     * Parse template source incrementally from the reader.
+     */
+    protected Template parse(long lastModified, Reader reader, TemplateLoader context)
+        throws TemplateException {
+        TemplateParser parser = this.parser;
+        if (null == parser) return new Template(lastModified, reader, context);
+        else
+            return new Template(lastModified, parser, reader, context);
+    }
+
     protected final Template hitCache(String filename, long fileLast) {
         Template template = this.cache.get(filename);
         if (null != template) {
@@ -25,7 +25,9 @@
  */
 package hapax;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -37,6 +39,15 @@ import java.util.Map;
  * an include or section inherits and overrides the data definitions of
  * variables and sections from its ancestors.
  *
+ * The data referenced by a cached fragment is identified by its
+ * {@link FragmentCache#Content content}.
+ *
+ * A dictionary {@link #freeze() frozen} for reuse is immutable, and data for
+ * each rendering is defined in an overlay of the frozen dictionary.
+ *
+ * Variables and sections may be {@link Supplier supplied}, to be evaluated
+ * only when rendered, and then again for each request or once.
+ *
  * @author dcoker
  * @author jdp
  */
@@ -53,12 +64,153 @@ public class TemplateDictionary
         return new TemplateDictionary();
     }
 
-    protected LinkedHashMap<String, String> variables = new LinkedHashMap<String, String>();
+    /**
+     * Section inherited or synthesized by {@link #getSection}, derived from
+     * the content of ancestors.
+     */
+    private final static class Derived extends ArrayList<TemplateDataDictionary> {
+
+        private static final long serialVersionUID = 1L;
+
+        Derived() {
+            super();
+        }
+
+        Derived(int capacity) {
+            super(capacity);
+        }
+
+        Derived(List<TemplateDataDictionary> section) {
+            super(section);
+        }
+    }
+
+    /**
+     * @return The section is inherited or synthesized
+     */
+    final static boolean IsDerived(List<TemplateDataDictionary> section) {
+        return (section instanceof Derived);
+    }
+
+    /**
+     * Variable evaluated on demand, by each request or once.
+     */
+    private final static class Lazy {
+
+        final Supplier<String> supplier;
+
+        final boolean memoize;
+
+        private volatile boolean supplied;
+
+        private volatile String value;
+
+        Lazy(Supplier<String> supplier, boolean memoize) {
+            super();
+            this.supplier = supplier;
+            this.memoize = memoize;
+        }
+
+        String get() {
+            if (!this.memoize) return this.supplier.get();
+            else if (this.supplied) return this.value;
+            else {
+                synchronized (this) {
+                    if (!this.supplied) {
+                        this.value = this.supplier.get();
+                        this.supplied = true;
+                    }
+                    return this.value;
+                }
+            }
+        }
+    }
+
+    /**
+     * Section evaluated on demand, by each request or once. As a list, it
+     * has the rows evaluated once, if any.
+     */
+    private final static class Supplied extends AbstractList<TemplateDataDictionary> {
+
+        final Supplier<? extends List<? extends TemplateDataDictionary>> supplier;
+
+        final boolean memoize;
+
+        private volatile boolean supplied;
+
+        private volatile List<TemplateDataDictionary> rows;
+
+        Supplied(Supplier<? extends List<? extends TemplateDataDictionary>> supplier,
+            boolean memoize) {
+            super();
+            this.supplier = supplier;
+            this.memoize = memoize;
+        }
+
+        /**
+         * @return Rows under the parent, or null for none
+         */
+        List<TemplateDataDictionary> rows(TemplateDictionary parent) {
+            if (!this.memoize) return Adopt(parent, this.supplier.get());
+            else if (this.supplied) return this.rows;
+            else {
+                synchronized (this) {
+                    if (!this.supplied) {
+                        this.rows = Adopt(parent, this.supplier.get());
+                        this.supplied = true;
+                    }
+                    return this.rows;
+                }
+            }
+        }
+
+        @Override
+        public TemplateDataDictionary get(int index) {
+            List<TemplateDataDictionary> rows = this.rows;
+            if (null != rows) return rows.get(index);
+            else
+                throw new IndexOutOfBoundsException(String.valueOf(index));
+        }
+
+        @Override
+        public int size() {
+            List<TemplateDataDictionary> rows = this.rows;
+            if (null != rows) return rows.size();
+            else
+                return 0;
+        }
+    }
+
+    /**
+     * @return The section is evaluated on demand
+     */
+    final static boolean IsSupplied(List<TemplateDataDictionary> section) {
+        return (section instanceof Supplied);
+    }
+
+    protected Map<String, String> variables = new CompactMap<String, String>();
+
+    /*
+     * Variables evaluated on demand, created on first use
+     */
+    private CompactMap<String, Lazy> lazy;
 
-    protected LinkedHashMap<String, List<TemplateDataDictionary>> sections = new LinkedHashMap<String, List<TemplateDataDictionary>>();
+    protected Map<String, List<TemplateDataDictionary>> sections = new CompactMap<String, List<TemplateDataDictionary>>();
 
     protected TemplateDataDictionary parent;
 
+    /*
+     * Dictionary viewed by an inherited section, with variables and sections
+     * of this dictionary overriding those of the source
+     */
+    private TemplateDictionary source;
+
+    /*
+     * Source section hidden in a view
+     */
+    private final static List<TemplateDataDictionary> Hidden = Collections
+        .unmodifiableList(new ArrayList<TemplateDataDictionary>(0));
+
     public TemplateDictionary() {
         super();
     }
@@ -68,42 +220,79 @@ public class TemplateDictionary
         this.parent = parent;
     }
 
+    /**
+     * View of the source under the parent.
+     */
+    private TemplateDictionary(TemplateDictionary source, TemplateDataDictionary parent) {
+        super();
+        this.source = source;
+        this.parent = parent;
+    }
+
     @Override
     public TemplateDataDictionary getParent() {
         return this.parent;
     }
 
+    /**
+     * @return Immutable copy of this dictionary and its sections, excluding
+     *         data inherited from ancestors, for sharing by concurrent and
+     *         repeated renderings. Suppliers are evaluated.
+     */
+    public FrozenTemplateDictionary freeze() {
+        return new FrozenTemplateDictionary(this, null);
+    }
+
     /**
      * Called by template render.
      */
     @Override
     public void renderComplete() {
         this.parent = null;
+        this.source = null;
         this.variables.clear();
+        this.lazy = null;
         for (List<TemplateDataDictionary> section : this.sections.values()) {
-            for (TemplateDataDictionary child : section) {
-                child.renderComplete();
+            if (!(section instanceof ColumnarSection || section instanceof StreamingSection)) {
+                for (TemplateDataDictionary child : section) {
+                    child.renderComplete();
+                }
             }
         }
         this.sections.clear();
     }
 
     /**
-     * Deep clone of dictionary carries parent.
+     * Deep clone of dictionary carries parent. The clone of a view of an
+     * inherited section has the variables and sections of the view. Sections
+     * inherited or synthesized are derived again by the clone.
      */
-    @SuppressWarnings("unchecked")
     @Override
     public TemplateDataDictionary clone() {
         try {
             TemplateDictionary clone = (TemplateDictionary) super.clone();
-            clone.variables = (LinkedHashMap<String, String>) this.variables.clone();
-            clone.sections = (LinkedHashMap<String, List<TemplateDataDictionary>>) this.sections
-                .clone();
-            for (Map.Entry<String, List<TemplateDataDictionary>> entry : clone.sections
+            clone.variables = new CompactMap<String, String>();
+            clone.lazy = null;
+            clone.sections = new CompactMap<String, List<TemplateDataDictionary>>();
+            clone.source = null;
+            for (Map.Entry<String, Object> entry : this.values().entrySet()) {
+                Object value = entry.getValue();
+                if (value instanceof Lazy) clone.lazy().put(entry.getKey(), (Lazy) value);
+                else
+                    clone.variables.put(entry.getKey(), (String) value);
+            }
+            for (Map.Entry<String, List<TemplateDataDictionary>> entry : this.sections()
                 .entrySet()) {
                 List<TemplateDataDictionary> section = entry.getValue();
-                List<TemplateDataDictionary> sectionClone = SectionClone(clone, section);
-                entry.setValue(sectionClone);
+                if (section instanceof Supplied) {
+                    /*
+                     * Evaluated again under the clone
+                     */
+                    Supplied supplied = (Supplied) section;
+                    clone.sections.put(entry.getKey(), new Supplied(supplied.supplier,
+                        supplied.memoize));
+                } else if (!(section instanceof Derived))
+                    clone.sections.put(entry.getKey(), SectionClone(clone, section));
             }
             return clone;
         } catch (java.lang.CloneNotSupportedException exc) {
@@ -131,7 +320,8 @@ public class TemplateDictionary
     @Override
     public boolean hasVariable(String varName) {
 
-        if (this.variables.containsKey(varName)) return true;
+        if (this.defines(varName)) return true;
+        else if (null != this.source && this.source.hasLocal(varName)) return true;
         else if (this.parent != null) return this.parent.hasVariable(varName);
         else
             return false;
@@ -142,6 +332,14 @@ public class TemplateDictionary
 
         String value = this.variables.get(varName);
 
+        if (null == value && null != this.lazy) {
+            Lazy lazy = this.lazy.get(varName);
+            if (null != lazy) value = lazy.get();
+        }
+        if (null == value && null != this.source && (!this.defines(varName)))
+
+            value = this.source.getLocal(varName);
+
         if (null != value)
 
             return value;
@@ -157,6 +355,23 @@ public class TemplateDictionary
     public void setVariable(String varName, String val) {
 
         this.variables.put(varName, val);
+        if (null != this.lazy) this.lazy.remove(varName);
+    }
+
+    /**
+     * Define a variable evaluated when requested.
+     *
+     * @param supplier
+     *            Variable value, or null for the value of an ancestor
+     * @param memoize
+     *            Evaluate the supplier once, otherwise by each request
+     */
+    public void setVariable(String varName, Supplier<String> supplier, boolean memoize) {
+        if (null != supplier) {
+            this.lazy().put(varName, new Lazy(supplier, memoize));
+            this.variables.remove(varName);
+        } else
+            throw new IllegalArgumentException(varName);
     }
 
     public final void setVariable(String varName, int val) {
@@ -164,18 +379,181 @@ public class TemplateDictionary
         this.setVariable(varName, String.valueOf(val));
     }
 
+    /**
+     * @return Variable is defined here or in the source of a view
+     */
+    private boolean hasLocal(String varName) {
+        for (TemplateDictionary dict = this; null != dict; dict = dict.source) {
+            if (dict.defines(varName)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return Variable is defined here, with a value or supplier
+     */
+    private boolean defines(String varName) {
+        return (this.variables.containsKey(varName) || (null != this.lazy && this.lazy
+            .containsKey(varName)));
+    }
+
+    private CompactMap<String, Lazy> lazy() {
+        CompactMap<String, Lazy> lazy = this.lazy;
+        if (null == lazy) {
+            lazy = new CompactMap<String, Lazy>();
+            this.lazy = lazy;
+        }
+        return lazy;
+    }
+
+    /**
+     * @return Variable value defined here or in the source of a view
+     */
+    private String getLocal(String varName) {
+        for (TemplateDictionary dict = this; null != dict; dict = dict.source) {
+            String value = dict.variables.get(varName);
+            if (null != value || dict.variables.containsKey(varName)) return value;
+            else if (null != dict.lazy) {
+                Lazy lazy = dict.lazy.get(varName);
+                if (null != lazy) return lazy.get();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Append the variable defined here or in the source of a view, as by
+     * {@link FragmentCache#Content}.
+     *
+     * @return Defined, undefined or opaque
+     */
+    final int contentVariable(String varName, StringBuilder content) {
+        for (TemplateDictionary dict = this; null != dict; dict = dict.source) {
+            String value = dict.variables.get(varName);
+            if (null != value) return FragmentCache.Value(content, value);
+            else if (null != dict.lazy) {
+                Lazy lazy = dict.lazy.get(varName);
+                if (null != lazy) {
+                    if (lazy.memoize) return FragmentCache.Value(content, lazy.get());
+                    else
+                        return FragmentCache.Opaque;
+                }
+            }
+        }
+        return FragmentCache.Undefined;
+    }
+
+    /**
+     * @return Variables defined here or in the source of a view, with
+     *         suppliers evaluated
+     */
+    final Map<String, String> variables() {
+        if (null == this.source && null == this.lazy) return this.variables;
+        else {
+            Map<String, String> variables = new LinkedHashMap<String, String>();
+            for (Map.Entry<String, Object> entry : this.values().entrySet()) {
+                Object value = entry.getValue();
+                if (value instanceof Lazy) value = ((Lazy) value).get();
+
+                variables.put(entry.getKey(), (String) value);
+            }
+            return variables;
+        }
+    }
+
+    /**
+     * @return Variables defined here or in the source of a view, as values
+     *         or suppliers
+     */
+    private Map<String, Object> values() {
+        Map<String, Object> values;
+        if (null == this.source) values = new LinkedHashMap<String, Object>();
+        else
+            values = this.source.values();
+
+        if (null != this.lazy) values.putAll(this.lazy);
+
+        values.putAll(this.variables);
+        return values;
+    }
+
     /*
      * Section API
      */
 
     public boolean hasNotSection(String sectionName) {
 
-        return (!this.sections.containsKey(sectionName));
+        return (!this.hasSection(sectionName));
     }
 
     public boolean hasSection(String sectionName) {
 
-        return (this.sections.containsKey(sectionName));
+        List<TemplateDataDictionary> section = this.sections.get(sectionName);
+        if (null != section) return (Hidden != section);
+        else
+            return (null != this.source && this.source.hasSection(sectionName));
+    }
+
+    /**
+     * @return Section defined here or in the source of a view, in which case
+     *         it's viewed from this dictionary, or null
+     */
+    final List<TemplateDataDictionary> local(String sectionName) {
+
+        List<TemplateDataDictionary> section = this.sections.get(sectionName);
+        if (null != section) {
+            if (section instanceof Supplied) return ((Supplied) section).rows(this);
+            else if (Hidden != section) return section;
+        } else if (null != this.source) {
+            List<TemplateDataDictionary> shared = this.source.local(sectionName);
+            if (null != shared) {
+                section = SectionView(this, shared, (shared instanceof Derived));
+
+                this.sections.put(sectionName, section);
+
+                return section;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Append the section defined here or in the source of a view, with the
+     * references of its rows, as by {@link FragmentCache#Content}.
+     *
+     * @return Defined, undefined or opaque
+     */
+    final int contentSection(String sectionName, String[] references, StringBuilder content) {
+        for (TemplateDictionary dict = this; null != dict; dict = dict.source) {
+            List<TemplateDataDictionary> section = dict.sections.get(sectionName);
+            if (Hidden == section) return FragmentCache.Undefined;
+            else if (section instanceof Supplied) {
+                Supplied supplied = (Supplied) section;
+                if (supplied.memoize)
+                    return FragmentCache.Rows(supplied.rows(dict), references, content);
+                else
+                    return FragmentCache.Opaque;
+            } else if (null != section) return FragmentCache.Rows(section, references, content);
+        }
+        return FragmentCache.Undefined;
+    }
+
+    /**
+     * @return Sections defined here or in the source of a view, as defined in
+     *         either
+     */
+    final Map<String, List<TemplateDataDictionary>> sections() {
+        if (null == this.source) return this.sections;
+        else {
+            Map<String, List<TemplateDataDictionary>> sections = new LinkedHashMap<String, List<TemplateDataDictionary>>(
+                this.source.sections());
+            for (Map.Entry<String, List<TemplateDataDictionary>> entry : this.sections.entrySet()) {
+                if (Hidden == entry.getValue()) sections.remove(entry.getKey());
+                else
+                    sections.put(entry.getKey(), entry.getValue());
+            }
+            return sections;
+        }
     }
 
     /**
@@ -185,7 +563,7 @@ public class TemplateDictionary
     @Override
     public List<TemplateDataDictionary> getSection(String sectionName) {
 
-        List<TemplateDataDictionary> list = this.sections.get(sectionName);
+        List<TemplateDataDictionary> list = this.local(sectionName);
         if (null != list) return list;
         else {
             /*
@@ -197,10 +575,11 @@ public class TemplateDictionary
                 List<TemplateDataDictionary> ancestor = parent.getSection(sectionName);
                 if (null != ancestor) {
                     /*
-                     * Section graph cloning from parent into children, as A - B
-                     * - C _________ | A - B - C - B' - C'
+                     * Section graph viewed from parent into children, as A - B
+                     * - C _________ | A - B - C - B' - C', with B' and C'
+                     * sharing the data of B and C until modified
                      */
-                    ancestor = SectionClone(this, ancestor);
+                    ancestor = SectionView(this, ancestor, true);
 
                     this.sections.put(sectionName, ancestor);
 
@@ -210,7 +589,7 @@ public class TemplateDictionary
             /*
              * Synthesize section
              */
-            if (this.hasVariable(sectionName)) return this.showSection(sectionName);
+            if (this.hasVariable(sectionName)) return this.show(sectionName, new Derived());
             else
                 return null;
         }
@@ -245,10 +624,18 @@ public class TemplateDictionary
 
         TemplateDictionary add = new TemplateDictionary(this);
 
-        List<TemplateDataDictionary> section = this.sections.get(sectionName);
+        List<TemplateDataDictionary> section = this.local(sectionName);
         if (null == section) {
             section = new ArrayList<TemplateDataDictionary>();
             this.sections.put(sectionName, section);
+        } else if (section instanceof Derived || section instanceof ColumnarSection
+            || this.sections.get(sectionName) instanceof Supplied) {
+            /*
+             * Adding to an inherited, columnar or supplied section defines
+             * it here
+             */
+            section = new ArrayList<TemplateDataDictionary>(section);
+            this.sections.put(sectionName, section);
         }
 
         section.add(add);
@@ -275,13 +662,18 @@ public class TemplateDictionary
     @Override
     public List<TemplateDataDictionary> showSection(String sectionName) {
 
-        List<TemplateDataDictionary> section = this.sections.get(sectionName);
-        if (null == section) {
-            section = new ArrayList<TemplateDataDictionary>();
-            TemplateDictionary show = new TemplateDictionary(this);
-            section.add(show);
-            this.sections.put(sectionName, section);
-        }
+        List<TemplateDataDictionary> section = this.local(sectionName);
+        if (null == section)
+            section = this.show(sectionName, new ArrayList<TemplateDataDictionary>());
+
+        return section;
+    }
+
+    private List<TemplateDataDictionary> show(String sectionName,
+        List<TemplateDataDictionary> section) {
+        TemplateDictionary show = new TemplateDictionary(this);
+        section.add(show);
+        this.sections.put(sectionName, section);
         return section;
     }
 
@@ -298,9 +690,46 @@ public class TemplateDictionary
         return this.showSection(from);
     }
 
+    /**
+     * Define a section evaluated when requested. A supplied section is
+     * visible to {@link #hasSection}, while no rows hide it when rendered.
+     * Rows without a parent are adopted by this dictionary, and others are
+     * cloned under it.
+     *
+     * @param supplier
+     *            Section rows, or null or empty for none
+     * @param memoize
+     *            Evaluate the supplier once, otherwise by each request
+     */
+    public void setSection(String sectionName,
+        Supplier<? extends List<? extends TemplateDataDictionary>> supplier, boolean memoize) {
+        if (null != supplier) {
+            this.sections.put(sectionName, new Supplied(supplier, memoize));
+        } else
+            throw new IllegalArgumentException(sectionName);
+    }
+
+    /**
+     * Define a section of the rows of the table, as a view of the table
+     * sharing its columns.
+     */
+    public void setSection(String sectionName, ColumnarSection section) {
+        this.sections.put(sectionName, section.under(this));
+    }
+
+    /**
+     * Define a section of the rows of the iterator, as a view of the rows
+     * consumed once.
+     */
+    public void setSection(String sectionName, StreamingSection section) {
+        this.sections.put(sectionName, section.under(this));
+    }
+
     public void hideSection(String sectionName) {
 
         this.sections.remove(sectionName);
+        if (null != this.source && this.source.hasSection(sectionName))
+            this.sections.put(sectionName, Hidden);
     }
 
     /**
@@ -313,15 +742,19 @@ public class TemplateDictionary
      */
     public void hideSection(String from, String to) {
 
-        this.sections.remove(from);
+        this.hideSection(from);
     }
 
     public final static List<TemplateDataDictionary> SectionClone(TemplateDataDictionary parent,
         List<TemplateDataDictionary> section) {
 
-        @SuppressWarnings("unchecked")
-        List<TemplateDataDictionary> sectionClone = (List<TemplateDataDictionary>) ((ArrayList<TemplateDataDictionary>) section)
-            .clone();
+        List<TemplateDataDictionary> shared = Under(section, parent);
+        if (null != shared) return shared;
+
+        List<TemplateDataDictionary> sectionClone;
+        if (section instanceof Derived) sectionClone = new Derived(section);
+        else
+            sectionClone = new ArrayList<TemplateDataDictionary>(section);
 
         for (int sectionIndex = 0, sectionCount = sectionClone
             .size(); sectionIndex < sectionCount; sectionIndex++) {
@@ -332,4 +765,68 @@ public class TemplateDictionary
 
         return sectionClone;
     }
+
+    /**
+     * @return View of a columnar or streaming section under the parent,
+     *         sharing its rows, or null for other sections
+     */
+    final static List<TemplateDataDictionary> Under(List<TemplateDataDictionary> section,
+        TemplateDataDictionary parent) {
+        if (section instanceof ColumnarSection) return ((ColumnarSection) section).under(parent);
+        else if (section instanceof StreamingSection)
+            return ((StreamingSection) section).under(parent);
+        else
+            return null;
+    }
+
+    /**
+     * @return Supplied rows under the parent, or null for none
+     */
+    private final static List<TemplateDataDictionary> Adopt(TemplateDictionary parent,
+        List<? extends TemplateDataDictionary> supplied) {
+
+        if (null == supplied || supplied.isEmpty()) return null;
+        else {
+            int sectionCount = supplied.size();
+            List<TemplateDataDictionary> section = new ArrayList<TemplateDataDictionary>(
+                sectionCount);
+            for (int sectionIndex = 0; sectionIndex < sectionCount; sectionIndex++) {
+                TemplateDataDictionary sectionItem = supplied.get(sectionIndex);
+                TemplateDataDictionary itemParent = sectionItem.getParent();
+                if (null == itemParent && sectionItem instanceof TemplateDictionary)
+                    ((TemplateDictionary) sectionItem).parent = parent;
+                else if (parent != itemParent) sectionItem = sectionItem.clone(parent);
+
+                section.add(sectionItem);
+            }
+            return Collections.unmodifiableList(section);
+        }
+    }
+
+    /**
+     * @return Section of views of the children under the parent, sharing
+     *         the data of each child until modified. Subclasses are cloned,
+     *         and columnar and streaming sections are viewed under the parent.
+     */
+    private final static List<TemplateDataDictionary> SectionView(TemplateDictionary parent,
+        List<TemplateDataDictionary> section, boolean derived) {
+
+        List<TemplateDataDictionary> shared = Under(section, parent);
+        if (null != shared) return shared;
+
+        int sectionCount = section.size();
+        List<TemplateDataDictionary> view;
+        if (derived) view = new Derived(sectionCount);
+        else
+            view = new ArrayList<TemplateDataDictionary>(sectionCount);
+
+        for (int sectionIndex = 0; sectionIndex < sectionCount; sectionIndex++) {
+            TemplateDataDictionary sectionItem = section.get(sectionIndex);
+            if (TemplateDictionary.class == sectionItem.getClass())
+                view.add(new TemplateDictionary((TemplateDictionary) sectionItem, parent));
+            else
+                view.add(sectionItem.clone(parent));
+        }
+        return view;
+    }
 }
@@ -0,0 +1,601 @@
+/*
+ * Hapax2
+ * Copyright (c) 2007 Doug Coker
+ * Copyright (c) 2009 John Pritchard
+ *
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hapax;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import hapax.parser.TextNode;
+
+/**
+ * Render target consumed by {@link Template} and the template nodes. Static
+ * template text is written as its {@link TextNode}, so that byte oriented
+ * outputs can copy its pre-encoded form, while dynamic values are written as
+ * strings and encoded at render time.
+ *
+ * Byte outputs encode each segment independently, so a charset that writes a
+ * byte order mark (as "UTF-16") writes it for every segment. Use "UTF-16BE" or
+ * "UTF-16LE" instead.
+ *
+ * @author jdp
+ */
+public abstract class TemplateOutput {
+
+    /**
+     * Sink readiness callback for streaming output.
+     *
+     * @see Streaming
+     */
+    public interface Backpressure {
+
+        /**
+         * Called after each flush, returning when the sink is ready for more
+         * output.
+         */
+        public void awaitReady() throws TemplateException;
+    }
+
+    /**
+     * Streaming decorator flushing its target after a threshold of output
+     * characters, and at explicit <code>{{%flush}}</code> points. Each flush is
+     * followed by the optional backpressure callback.
+     */
+    public static class Streaming extends TemplateOutput {
+
+        protected final TemplateOutput out;
+
+        protected final int threshold;
+
+        protected final Backpressure backpressure;
+
+        private int pending;
+
+        public Streaming(TemplateOutput out, int threshold) {
+            this(out, threshold, null);
+        }
+
+        public Streaming(TemplateOutput out, int threshold, Backpressure backpressure) {
+            super();
+            if (null != out && 0 < threshold) {
+                this.out = out;
+                this.threshold = threshold;
+                this.backpressure = backpressure;
+            } else
+                throw new IllegalArgumentException();
+        }
+
+        @Override
+        public void write(TextNode text) throws TemplateException {
+            this.out.write(text);
+            this.written(text.getText().length());
+        }
+
+        @Override
+        public void write(String text) throws TemplateException {
+            this.out.write(text);
+            this.written(text.length());
+        }
+
+        @Override
+        public void write(CharSequence text, int start, int end) throws TemplateException {
+            this.out.write(text, start, end);
+            this.written(end - start);
+        }
+
+        @Override
+        public void flush() throws TemplateException {
+            this.pending = 0;
+            this.out.flush();
+            if (null != this.backpressure) this.backpressure.awaitReady();
+        }
+
+        private void written(int length) throws TemplateException {
+            this.pending += length;
+            if (this.pending >= this.threshold) this.flush();
+        }
+    }
+
+    /**
+     * Character output to a string builder, without synchronization or
+     * exception handling.
+     */
+    public static class Text extends TemplateOutput {
+
+        protected final StringBuilder out;
+
+        public Text() {
+            this(new StringBuilder());
+        }
+
+        public Text(StringBuilder out) {
+            super();
+            if (null != out) this.out = out;
+            else
+                throw new IllegalArgumentException();
+        }
+
+        public StringBuilder getBuffer() {
+            return this.out;
+        }
+
+        @Override
+        public void write(String text) {
+            this.out.append(text);
+        }
+
+        @Override
+        public void write(CharSequence text, int start, int end) {
+            this.out.append(text, start, end);
+        }
+
+        @Override
+        public String toString() {
+            return this.out.toString();
+        }
+    }
+
+    /**
+     * Character output to an appendable, such as a writer. The target is
+     * flushed when it is {@link java.io.Flushable}.
+     */
+    public static class Chars extends TemplateOutput {
+
+        protected final Appendable out;
+
+        public Chars(Appendable out) {
+            super();
+            if (null != out) this.out = out;
+            else
+                throw new IllegalArgumentException();
+        }
+
+        @Override
+        public void write(String text) throws TemplateException {
+            try {
+                this.out.append(text);
+            } catch (IOException exc) {
+                throw new TemplateException(exc);
+            }
+        }
+
+        @Override
+        public void write(CharSequence text, int start, int end) throws TemplateException {
+            try {
+                this.out.append(text, start, end);
+            } catch (IOException exc) {
+                throw new TemplateException(exc);
+            }
+        }
+
+        @Override
+        public void flush() throws TemplateException {
+            if (this.out instanceof Flushable) {
+                try {
+                    ((Flushable) this.out).flush();
+                } catch (IOException exc) {
+                    throw new TemplateException(exc);
+                }
+            }
+        }
+    }
+
+    /**
+     * Buffered byte output to a stream. Static text is copied from the
+     * encoding cached by its node.
+     */
+    public static class Bytes extends TemplateOutput {
+
+        protected final OutputStream out;
+
+        protected final Charset charset;
+
+        private final CharsetEncoder encoder;
+
+        private final ByteBuffer buffer;
+
+        public Bytes(OutputStream out, Charset charset) {
+            this(out, charset, 0x2000);
+        }
+
+        public Bytes(OutputStream out, Charset charset, int buffer) {
+            super();
+            if (null != out && null != charset && 0 < buffer) {
+                this.out = out;
+                this.charset = charset;
+                this.encoder = Encoder(charset);
+                this.buffer = ByteBuffer.allocate(buffer);
+            } else
+                throw new IllegalArgumentException();
+        }
+
+        @Override
+        public void write(TextNode text) throws TemplateException {
+            byte[] bytes = text.getEncoded(this.charset);
+            ByteBuffer buffer = this.buffer;
+            if (bytes.length > buffer.remaining()) {
+                this.drain();
+                if (bytes.length >= buffer.capacity()) {
+                    try {
+                        this.out.write(bytes, 0, bytes.length);
+                    } catch (IOException exc) {
+                        throw new TemplateException(exc);
+                    }
+                    return;
+                }
+            }
+            buffer.put(bytes);
+        }
+
+        @Override
+        public void write(String text) throws TemplateException {
+            this.write(text, 0, text.length());
+        }
+
+        @Override
+        public void write(CharSequence text, int start, int end) throws TemplateException {
+            CharsetEncoder encoder = this.encoder;
+            CharBuffer in = CharBuffer.wrap(text, start, end);
+            encoder.reset();
+            CoderResult result;
+            while ((result = encoder.encode(in, this.buffer, true)).isOverflow()) {
+                this.drain();
+            }
+            Encoding(result);
+            while (encoder.flush(this.buffer).isOverflow()) {
+                this.drain();
+            }
+        }
+
+        @Override
+        public void flush() throws TemplateException {
+            this.drain();
+            try {
+                this.out.flush();
+            } catch (IOException exc) {
+                throw new TemplateException(exc);
+            }
+        }
+
+        /**
+         * Write buffered bytes to the stream.
+         */
+        protected void drain() throws TemplateException {
+            ByteBuffer buffer = this.buffer;
+            if (0 != buffer.position()) {
+                try {
+                    this.out.write(buffer.array(), 0, buffer.position());
+                } catch (IOException exc) {
+                    throw new TemplateException(exc);
+                }
+                buffer.clear();
+            }
+        }
+    }
+
+    /**
+     * Byte output into a buffer, without intermediate copies. Writing beyond
+     * the remaining space of the buffer throws an exception.
+     */
+    public static class Buffer extends TemplateOutput {
+
+        protected final ByteBuffer out;
+
+        protected final Charset charset;
+
+        private final CharsetEncoder encoder;
+
+        public Buffer(ByteBuffer out, Charset charset) {
+            super();
+            if (null != out && null != charset) {
+                this.out = out;
+                this.charset = charset;
+                this.encoder = Encoder(charset);
+            } else
+                throw new IllegalArgumentException();
+        }
+
+        @Override
+        public void write(TextNode text) throws TemplateException {
+            try {
+                this.out.put(text.getEncoded(this.charset));
+            } catch (BufferOverflowException exc) {
+                throw new TemplateException("Output buffer overflow", exc);
+            }
+        }
+
+        @Override
+        public void write(String text) throws TemplateException {
+            this.write(text, 0, text.length());
+        }
+
+        @Override
+        public void write(CharSequence text, int start, int end) throws TemplateException {
+            CharsetEncoder encoder = this.encoder;
+            encoder.reset();
+            CoderResult result = encoder.encode(CharBuffer.wrap(text, start, end), this.out, true);
+            if (result.isUnderflow()) result = encoder.flush(this.out);
+
+            if (result.isOverflow())
+                throw new TemplateException("Output buffer overflow");
+            else
+                Encoding(result);
+        }
+    }
+
+    /**
+     * Gathering output to a blocking channel. Static text is written from
+     * views of the shared buffers cached by its node, without copying, and
+     * dynamic values are encoded into pooled buffers. Segments are written in
+     * batches with {@link GatheringByteChannel#write(ByteBuffer[],int,int)}.
+     * The output must be released after use, to return its buffers to the
+     * pool.
+     */
+    public static class Channel extends TemplateOutput {
+
+        public final static int Batch = 64;
+
+        public final static int Chunk = 0x2000;
+
+        private final static int PoolMax = 64;
+
+        private final static ConcurrentLinkedQueue<ByteBuffer> Pool = new ConcurrentLinkedQueue<ByteBuffer>();
+
+        private final static AtomicInteger PoolSize = new AtomicInteger();
+
+        private final static ByteBuffer Acquire() {
+            ByteBuffer chunk = Pool.poll();
+            if (null != chunk) {
+                PoolSize.decrementAndGet();
+                chunk.clear();
+                return chunk;
+            } else
+                return ByteBuffer.allocateDirect(Chunk);
+        }
+
+        private final static void Release(ByteBuffer chunk) {
+            if (PoolMax >= PoolSize.incrementAndGet()) Pool.offer(chunk);
+            else
+                PoolSize.decrementAndGet();
+        }
+
+        protected final GatheringByteChannel out;
+
+        protected final Charset charset;
+
+        private final CharsetEncoder encoder;
+
+        private final ByteBuffer[] segments = new ByteBuffer[Batch];
+
+        private int count;
+
+        /*
+         * Pooled buffers referenced by the pending batch, besides the current
+         * chunk
+         */
+        private final List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+
+        private ByteBuffer chunk;
+
+        /*
+         * Last pending segment, when it's in the current chunk
+         */
+        private ByteBuffer open;
+
+        public Channel(GatheringByteChannel out, Charset charset) {
+            super();
+            if (null != out && null != charset) {
+                this.out = out;
+                this.charset = charset;
+                this.encoder = Encoder(charset);
+            } else
+                throw new IllegalArgumentException();
+        }
+
+        @Override
+        public void write(TextNode text) throws TemplateException {
+            ByteBuffer buffer = text.getBuffer(this.charset);
+            if (buffer.hasRemaining()) {
+                this.open = null;
+                this.add(buffer);
+            }
+        }
+
+        @Override
+        public void write(String text) throws TemplateException {
+            this.write(text, 0, text.length());
+        }
+
+        @Override
+        public void write(CharSequence text, int start, int end) throws TemplateException {
+            if (start == end) return;
+            else {
+                CharsetEncoder encoder = this.encoder;
+                CharBuffer in = CharBuffer.wrap(text, start, end);
+                encoder.reset();
+                boolean flushing = false;
+                while (true) {
+                    ByteBuffer chunk = this.chunk();
+                    int position = chunk.position();
+                    CoderResult result = flushing ? encoder.flush(chunk) : encoder.encode(in, chunk,
+                        true);
+                    this.segment(chunk, position);
+
+                    if (result.isOverflow()) this.next();
+                    else if (flushing) return;
+                    else {
+                        Encoding(result);
+                        flushing = true;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Write pending segments to the channel, and return retired chunks to
+         * the pool. The current chunk continues to fill.
+         */
+        @Override
+        public void flush() throws TemplateException {
+            ByteBuffer[] segments = this.segments;
+            int count = this.count;
+            try {
+                int offset = 0;
+                while (offset < count) {
+                    this.out.write(segments, offset, (count - offset));
+
+                    while (offset < count && !segments[offset].hasRemaining()) {
+                        offset++;
+                    }
+                }
+            } catch (IOException exc) {
+                throw new TemplateException(exc);
+            }
+            Arrays.fill(segments, 0, count, null);
+            this.count = 0;
+            this.open = null;
+            for (ByteBuffer chunk : this.chunks) {
+                Release(chunk);
+            }
+            this.chunks.clear();
+        }
+
+        /**
+         * Return pooled buffers, discarding pending segments.
+         */
+        public void release() {
+            Arrays.fill(this.segments, 0, this.count, null);
+            this.count = 0;
+            this.open = null;
+            for (ByteBuffer chunk : this.chunks) {
+                Release(chunk);
+            }
+            this.chunks.clear();
+            if (null != this.chunk) {
+                Release(this.chunk);
+                this.chunk = null;
+            }
+        }
+
+        private ByteBuffer chunk() {
+            ByteBuffer chunk = this.chunk;
+            if (null == chunk) {
+                chunk = Acquire();
+                this.chunk = chunk;
+            }
+            return chunk;
+        }
+
+        /**
+         * Retire the current chunk to the pending batch.
+         */
+        private void next() {
+            this.chunks.add(this.chunk);
+            this.chunk = null;
+            this.open = null;
+        }
+
+        /**
+         * Add the chunk content from start to its position, extending the
+         * last segment when it's contiguous.
+         */
+        private void segment(ByteBuffer chunk, int start) throws TemplateException {
+            int end = chunk.position();
+            if (start < end) {
+                ByteBuffer open = this.open;
+                if (null != open && open.limit() == start) open.limit(end);
+                else {
+                    open = chunk.duplicate();
+                    open.limit(end);
+                    open.position(start);
+                    this.add(open);
+                    this.open = open;
+                }
+            }
+        }
+
+        private void add(ByteBuffer segment) throws TemplateException {
+            if (this.count == this.segments.length) {
+                this.flush();
+            }
+            this.segments[this.count++] = segment;
+        }
+    }
+
+    /**
+     * Write dynamic text.
+     */
+    public abstract void write(String text) throws TemplateException;
+
+    /**
+     * Write dynamic text from the start index, inclusive, to the end index,
+     * exclusive.
+     */
+    public void write(CharSequence text, int start, int end) throws TemplateException {
+        this.write(text.subSequence(start, end).toString());
+    }
+
+    /**
+     * Write static template text.
+     */
+    public void write(TextNode text) throws TemplateException {
+        this.write(text.getText());
+    }
+
+    /**
+     * Write buffered output through to its destination.
+     */
+    public void flush() throws TemplateException {
+    }
+
+    protected final static CharsetEncoder Encoder(Charset charset) {
+        return charset.newEncoder().onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    private final static void Encoding(CoderResult result) throws TemplateException {
+        if (result.isError()) {
+            try {
+                result.throwException();
+            } catch (IOException exc) {
+                throw new TemplateException(exc);
+            }
+        }
+    }
+}
@@ -29,19 +29,24 @@ package hapax;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.Reader;
-import java.io.StringWriter;
+import java.net.URL;
+import java.net.URLConnection;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
+import hapax.parser.PrecompiledTemplate;
 import hapax.parser.TemplateParser;
+import hapax.parser.TemplateParserException;
 
 /**
  * <p>
  * An in-memory cache of parsed {@link Template}s intended to be shared across
  * threads.
  * </p>
- * Templates are loaded from the classpath.
+ * Templates are loaded from the classpath, preferring a precompiled
+ * <code>".xtmc"</code> resource at least as recent as the template source.
  * </p>
  *
  * @author Alan Stewart (alankstewart@gmail.com)
@@ -50,6 +55,8 @@ public class TemplateResourceLoader implements TemplateLoader {
 
     private static final Map<String, Template> mCache = new LinkedHashMap<String, Template>();
 
+    private static final Logger mLog = Logger.getLogger(TemplateResourceLoader.class.getName());
+
     protected final String mBaseDir;
 
     protected final TemplateParser mParser;
@@ -137,16 +144,92 @@ public class TemplateResourceLoader implements TemplateLoader {
 
         if (mCache.containsKey(templatePath)) return mCache.get(templatePath);
 
-        InputStream is = getClass().getClassLoader().getResourceAsStream(templatePath);
-        if (is == null) {
-            is = getClass().getClassLoader().getResourceAsStream(resource);
-            if (is == null)
-                throw new TemplateException("Template " + templatePath + " could not be found");
+        ClassLoader loader = getClass().getClassLoader();
+        String path = templatePath;
+        URL source = loader.getResource(path);
+        if (source == null && loader.getResource(path + 'c') == null) {
+            path = resource;
+            source = loader.getResource(path);
+        }
+
+        Template template = readPrecompiled(context, templatePath, loader.getResource(path + 'c'),
+            source);
+        if (template != null) return template;
+        else if (source == null)
+            throw new TemplateException("Template " + templatePath + " could not be found");
+
+        InputStream is;
+        try {
+            is = source.openStream();
+        } catch (IOException e) {
+            throw new TemplateException(templatePath, e);
         }
 
         return getTemplate(context, templatePath, is);
     }
 
+    /**
+     * Loads the precompiled template (see {@link PrecompiledTemplate}) when it
+     * exists, is at least as recent as its source, and was precompiled with
+     * the options of the parser of this loader.
+     *
+     * @param compiled
+     *            The precompiled template resource, or null.
+     * @param source
+     *            The template source resource, or null.
+     * @return the {@link Template}, or null.
+     */
+    private Template readPrecompiled(TemplateLoader context, String name, URL compiled,
+        URL source) {
+        if (compiled == null) return null;
+
+        InputStream is = null;
+        try {
+            URLConnection connection = compiled.openConnection();
+            connection.setUseCaches(false);
+            is = connection.getInputStream();
+
+            if (source != null && connection.getLastModified() < lastModified(source)) return null;
+
+            Template template = new Template(0L, PrecompiledTemplate.Read(is, mParser), context);
+
+            synchronized (mCache) {
+                mCache.put(name, template);
+            }
+
+            return template;
+        } catch (IOException e) {
+            return null;
+        } catch (TemplateParserException e) {
+            mLog.log(Level.WARNING, "Parsing " + name + " in place of " + compiled, e);
+            return null;
+        } finally {
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (IOException ignore) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes the connection, without caching, so that a jar file opened for
+     * the resource is also closed.
+     *
+     * @return the modification time of the resource.
+     */
+    private static long lastModified(URL resource) throws IOException {
+        URLConnection connection = resource.openConnection();
+        connection.setUseCaches(false);
+        InputStream is = connection.getInputStream();
+        try {
+            return connection.getLastModified();
+        } finally {
+            is.close();
+        }
+    }
+
     /**
      * Loads a template from a given {@link InputStream} using the given name as
      * cache key.
@@ -161,17 +244,18 @@ public class TemplateResourceLoader implements TemplateLoader {
      */
     public Template getTemplate(TemplateLoader context, String name, InputStream is)
         throws TemplateException {
-        String contents = null;
+        Template template;
 
         try {
-            contents = copyToString(new InputStreamReader(is));
-        } catch (IOException e) {
-            throw new TemplateException(e);
+            template = mParser == null ? new Template(0L, new InputStreamReader(is), context)
+                : new Template(0L, mParser, new InputStreamReader(is), context);
+        } finally {
+            try {
+                is.close();
+            } catch (IOException ignore) {
+            }
         }
 
-        Template template = mParser == null ? new Template(contents, context)
-            : new Template(mParser, contents, context);
-
         template.hashCode();
 
         synchronized (mCache) {
@@ -195,31 +279,4 @@ public class TemplateResourceLoader implements TemplateLoader {
     public Template getTemplate(String name, InputStream is) throws TemplateException {
         return getTemplate(new TemplateLoader.Context(this, mBaseDir), name, is);
     }
-
-    /**
-     * @param in
-     * @return
-     * @throws IOException
-     */
-    private String copyToString(Reader in) throws IOException {
-        StringWriter out = new StringWriter();
-        try {
-            char[] buffer = new char[4096];
-            int bytesRead = -1;
-            while ((bytesRead = in.read(buffer)) != -1) {
-                out.write(buffer, 0, bytesRead);
-            }
-            out.flush();
-        } finally {
-            try {
-                in.close();
-            } catch (IOException ignore) {
-            }
-            try {
-                out.close();
-            } catch (IOException ignore) {
-            }
-        }
-        return out.toString();
-    }
 }
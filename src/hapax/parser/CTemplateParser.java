@@ -27,6 +27,7 @@ package hapax.parser;
 
 import static hapax.parser.TemplateNode.TemplateType.TemplateTypeSection;
 
+import java.io.Reader;
 import java.text.MessageFormat;
 import java.util.List;
 
@@ -37,12 +38,18 @@ import hapax.TemplateLoader;
 
 /**
  * This parser turns strings containing the contents of a template into a list
- * of TemplateNodes.
+ * of TemplateNodes. Sources read from a {@link Reader} are tokenized
+ * incrementally through a bounded window, so the complete source text is never
+ * held in memory.
+ *
+ * Pragmas are written as <code>{{%name}}</code>. The <code>{{%flush}}</code>
+ * pragma is an explicit flush point for streaming output, and other pragmas
+ * are ignored as comments.
  *
  * @author dcoker
  * @author jdp
  */
-public final class CTemplateParser extends Object implements TemplateParser {
+public final class CTemplateParser extends Object implements TemplateStreamParser {
     /**
      * Shared stateless C template parser.
      */
@@ -69,57 +76,101 @@ public final class CTemplateParser extends Object implements TemplateParser {
         TEXT_NODE,
         INCLUDE_SECTION,
         COMMENT,
+        PRAGMA,
         END_INPUT;
     }
 
+    private final Strip strip;
+
+    private final TemplateOptimizer optimizer;
+
+    /**
+     * Parser applying {@link TemplateOptimizer#Default}.
+     */
     public CTemplateParser() {
+        this(Strip.DO_NOT_STRIP, TemplateOptimizer.Default);
+    }
+
+    /**
+     * Parser applying {@link TemplateOptimizer#Default}.
+     */
+    public CTemplateParser(Strip strip) {
+        this(strip, TemplateOptimizer.Default);
+    }
+
+    public CTemplateParser(TemplateOptimizer optimizer) {
+        this(Strip.DO_NOT_STRIP, optimizer);
+    }
+
+    public CTemplateParser(Strip strip, TemplateOptimizer optimizer) {
         super();
+        if (null != strip && null != optimizer) {
+            this.strip = strip;
+            this.optimizer = optimizer;
+        } else
+            throw new IllegalArgumentException();
+    }
+
+    public Strip getStrip() {
+        return this.strip;
+    }
+
+    public TemplateOptimizer getOptimizer() {
+        return this.optimizer;
     }
 
     private static NODE_TYPE next(ParserReader input) {
 
-        int inlen = input.length();
-        switch (inlen) {
-            case 0:
-                return NODE_TYPE.END_INPUT;
-            case 1:
-            case 2:
-            case 3:
-            case 4:
-                return NODE_TYPE.TEXT_NODE;
-            default:
-                if ('{' == input.charAt(0) && '{' == input.charAt(1)) {
-
-                    switch (input.charAt(2)) {
-                        case '{':
-                            do {
-                                input.next();
-                            } while ('{' == input.charAtTest(2));
-
-                            return NODE_TYPE.TEXT_NODE;
-                        case '#':
-                            return NODE_TYPE.OPEN_SECTION;
-                        case '/':
-                            return NODE_TYPE.CLOSE_SECTION;
-                        case '>':
-                            return NODE_TYPE.INCLUDE_SECTION;
-                        case '=':
-                            return NODE_TYPE.VARIABLE;
-                        case '!':
-                            return NODE_TYPE.COMMENT;
-                        default:
-                            return NODE_TYPE.VARIABLE;
-                    }
-                }
-                return NODE_TYPE.TEXT_NODE;
-        }
+        if (0 == input.length())
+
+            return NODE_TYPE.END_INPUT;
+
+        else if ('{' == input.charAt(0) && '{' == input.charAtTest(1)) {
+
+            switch (input.charAtTest(2)) {
+                case '{':
+                    do {
+                        input.next();
+                    } while ('{' == input.charAtTest(2));
+
+                    return NODE_TYPE.TEXT_NODE;
+                case '#':
+                    return NODE_TYPE.OPEN_SECTION;
+                case '/':
+                    return NODE_TYPE.CLOSE_SECTION;
+                case '>':
+                    return NODE_TYPE.INCLUDE_SECTION;
+                case '=':
+                    return NODE_TYPE.VARIABLE;
+                case '!':
+                    return NODE_TYPE.COMMENT;
+                case '%':
+                    return NODE_TYPE.PRAGMA;
+                default:
+                    return NODE_TYPE.VARIABLE;
+            }
+        } else
+            return NODE_TYPE.TEXT_NODE;
     }
 
     @Override
     public List<TemplateNode> parse(TemplateLoader context, String template)
         throws TemplateParserException {
+        return this.parse(new ParserReader(template));
+    }
+
+    @Override
+    public List<TemplateNode> parse(TemplateLoader context, Reader template)
+        throws TemplateParserException {
+        try {
+            return this.parse(new ParserReader(template));
+        } catch (ParserReader.SourceException exc) {
+            throw new TemplateParserException("Error reading template source", exc.getCause());
+        }
+    }
+
+    private List<TemplateNode> parse(ParserReader input) throws TemplateParserException {
         List<TemplateNode> list = new java.util.ArrayList<TemplateNode>();
-        ParserReader input = new ParserReader(template);
         TemplateNode node = null;
         while (true) {
             switch (next(input)) {
@@ -141,9 +192,12 @@ public final class CTemplateParser extends Object implements TemplateParser {
                 case COMMENT:
                     node = parseComment(input);
                     break;
+                case PRAGMA:
+                    node = parsePragma(input);
+                    break;
 
                 case END_INPUT:
-                    return close(list);
+                    return this.optimizer.optimize(close(this.strip.strip(list))).template;
 
                 default:
                     throw new RuntimeException("Internal error parsing template.");
@@ -153,138 +207,172 @@ public final class CTemplateParser extends Object implements TemplateParser {
     }
 
     /**
-     * Terminal scan
+     * Terminal scan nests the body of each section into its open tag, and
+     * drops the close tags.
      */
     private static List<TemplateNode> close(List<TemplateNode> template)
         throws TemplateParserException {
 
+        List<TemplateNode> top = new java.util.ArrayList<TemplateNode>();
+        List<TemplateNode> body = top;
+        /*
+         * Open sections with the bodies enclosing them
+         */
+        List<SectionNode> open = new java.util.ArrayList<SectionNode>();
+        List<List<TemplateNode>> outer = new java.util.ArrayList<List<TemplateNode>>();
+
         for (int cc = 0, count = template.size(); cc < count; cc++) {
 
             TemplateNode node = template.get(cc);
 
-            node.ofs = cc;
-
             switch (node.getTemplateType()) {
 
                 case TemplateTypeSection: {
 
                     SectionNode section = (SectionNode) node;
 
-                    if (section.isOpenSectionTag())
-                        section.indexOfClose = IndexOfClose(template, cc, section);
-                    else
-                        section.indexOfClose = Integer.MAX_VALUE;//(flypaper)
+                    if (section.isOpenSectionTag()) {
+
+                        open.add(section);
+                        outer.add(body);
+                        body = new java.util.ArrayList<TemplateNode>();
+                    } else {
+                        int depth = open.size();
+                        if (0 == depth) {
+
+                            String msg = MessageFormat.format(
+                                "Unexpected close tag for \"{0}\" at line {1}.",
+                                section.getSectionName(), section.lineNumber);
+                            throw new TemplateParserException(msg);
+                        } else {
+                            SectionNode opening = open.remove(depth - 1);
+
+                            if (section.getSectionName().equals(opening.getSectionName())) {
+
+                                opening.children = body.toArray(new TemplateNode[body.size()]);
+
+                                body = outer.remove(depth - 1);
+                                body.add(opening);
+                            } else {
+
+                                String msg = MessageFormat.format(
+                                    "Mismatched close tag: expecting a close tag for \"{0}\", but got close tag for \"{1}\" at line {2}.",
+                                    opening.getSectionName(), section.getSectionName(),
+                                    section.lineNumber);
+                                throw new TemplateParserException(msg);
+                            }
+                        }
+                    }
                 }
                     break;
 
                 default:
+                    body.add(node);
                     break;
             }
         }
 
-        return template;
+        if (open.isEmpty())
+
+            return top;
+        else {
+            SectionNode section = open.get(open.size() - 1);
+
+            throw new TemplateParserException("Missing close tag for section '"
+                + section.getSectionName() + "' at line " + section.lineNumber + ".");
+        }
     }
 
     private static TemplateNode parseTextNode(ParserReader input) {
         int lno = input.lineNumber();
-        int next_braces = input.indexOf("{{");
-        if (next_braces == -1) { // no more parser syntax
-
-            String text = input.truncate();
+        int next_braces = input.indexOf("{{", false);
+        if (next_braces == -1) {
+            if (input.isComplete()) { // no more parser syntax
+
+                String text = input.truncate();
+
+                return (new TextNode(lno, text));
+            } else {
+                /*
+                 * Text longer than the reader window, keeping back a
+                 * trailing brace that may open the next tag, and the high
+                 * half of a surrogate pair split by the window
+                 */
+                int length = (input.length() - 1);
+                if (1 < length && Character.isHighSurrogate(input.charAtCursor(length - 1)))
+                    length -= 1;
+
+                int start = input.consume(length);
+
+                return (new TextNode(lno, input.substring(start, start + length)));
+            }
+        } else if (0 < next_braces) {
+            int start = input.consume(next_braces);
 
-            return (new TextNode(lno, text));
-        } else {
-            String text = input.delete(0, next_braces);
-            if (text.length() > 0) return (new TextNode(lno, text));
-            else
-                return null;
-        }
+            return (new TextNode(lno, input.substring(start, start + next_braces)));
+        } else
+            return null;
     }
 
     private static TemplateNode parseInclude(ParserReader input) throws TemplateParserException {
         int lno = input.lineNumber();
-        String consumed = parseClose(input);
-        String token = consumed.substring(3, consumed.length() - 2).trim();
+        String token = parseClose(input, 3);
         return (new IncludeNode(lno, token));
     }
 
     private static TemplateNode parseVariable(ParserReader input) throws TemplateParserException {
         int lno = input.lineNumber();
         String token;
-        String consumed = parseClose(input);
-        if ('=' == consumed.charAt(2)) token = consumed.substring(3, consumed.length() - 2).trim();
+        if ('=' == input.charAtTest(2)) token = parseClose(input, 3);
         else
-            token = consumed.substring(2, consumed.length() - 2).trim();
+            token = parseClose(input, 2);
         return (new VariableNode(lno, token));
     }
 
     private static TemplateNode parseCloseSection(ParserReader input)
         throws TemplateParserException {
         int lno = input.lineNumber();
-        String consumed = parseClose(input);
-        String token = consumed.substring(3, consumed.length() - 2).trim();
+        String token = parseClose(input, 3);
         return (SectionNode.Close(lno, token));
     }
 
     private static TemplateNode parseOpenSection(ParserReader input)
         throws TemplateParserException {
         int lno = input.lineNumber();
-        String consumed = parseClose(input);
-        String token = consumed.substring(3, consumed.length() - 2).trim();
+        String token = parseClose(input, 3);
         return (SectionNode.Open(lno, token));
     }
 
     private static TemplateNode parseComment(ParserReader input) throws TemplateParserException {
         int lno = input.lineNumber();
-        String consumed = parseClose(input);
-        String token = consumed.substring(3, consumed.length() - 2).trim();
+        String token = parseClose(input, 3);
         return (new CommentNode(lno, token));
     }
 
-    private static String parseClose(ParserReader input) throws TemplateParserException {
+    private static TemplateNode parsePragma(ParserReader input) throws TemplateParserException {
+        int lno = input.lineNumber();
+        String token = parseClose(input, 3);
+        if (FlushNode.Pragma.equalsIgnoreCase(token)) return (new FlushNode(lno));
+        else
+            return (new CommentNode(lno, token));
+    }
+
+    /**
+     * Consume a tag from the cursor through its closing braces.
+     *
+     * @param open
+     *            Length of the tag prefix, as <code>"{{#"</code>
+     * @return Tag content between prefix and closing braces, trimmed
+     */
+    private static String parseClose(ParserReader input, int open)
+        throws TemplateParserException {
         int close_braces = input.indexOf("}}");
-        if (-1 == close_braces) throw new TemplateParserException(
+        if (open > close_braces) throw new TemplateParserException(
             "Unexpected or malformed input: " + input + " at " + input.lineNumber());
         else {
             int end = close_braces + 2;
-            return input.delete(0, end);
+            int start = input.consume(end);
+            return input.trim(start + open, start + close_braces);
         }
     }
-
-    private final static int IndexOfClose(List<TemplateNode> template, int node_ofs,
-        SectionNode node) throws TemplateParserException {
-        int stack = IndexOfCloseStackInit, ofs = (node_ofs + 1), length = template.size();
-        for (; ofs < length; ofs++) {
-
-            TemplateNode tp = template.get(ofs);
-
-            if (TemplateTypeSection == tp.getTemplateType()) {
-
-                SectionNode section = (SectionNode) tp;
-
-                if (section.isOpenSectionTag())
-
-                    stack++;
-
-                else if (IndexOfCloseStackInit == stack) {
-
-                    if (section.getSectionName().equals(node.getSectionName()))
-
-                        return ofs;
-
-                    else {
-
-                        String msg = MessageFormat.format(
-                            "Mismatched close tag: expecting a close tag for \"{0}\", but got close tag for \"{1}\" at line {2}.",
-                            node.getSectionName(), section.getSectionName(), section.lineNumber);
-                        throw new TemplateParserException(msg);
-                    }
-                } else
-                    stack--;
-            }
-        }
-        return -1;
-    }
-
-    private final static int IndexOfCloseStackInit = 0;
 }
@@ -25,10 +25,9 @@
  */
 package hapax.parser;
 
-import java.io.PrintWriter;
-
 import hapax.TemplateDataDictionary;
 import hapax.TemplateLoader;
+import hapax.TemplateOutput;
 
 /**
  * Represents a ctemplate language comment.
@@ -45,7 +44,6 @@ public final class CommentNode extends TemplateNode {
     }
 
     @Override
-    public void evaluate(TemplateDataDictionary dict, TemplateLoader context,
-        PrintWriter collector) {
+    public void evaluate(TemplateDataDictionary dict, TemplateLoader context, TemplateOutput out) {
     }
 }
@@ -0,0 +1,53 @@
+/*
+ * Hapax2
+ * Copyright (c) 2007 Doug Coker
+ * Copyright (c) 2009 John Pritchard
+ *
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hapax.parser;
+
+import hapax.TemplateDataDictionary;
+import hapax.TemplateException;
+import hapax.TemplateLoader;
+import hapax.TemplateOutput;
+
+/**
+ * Represents the <code>{{%flush}}</code> pragma, an explicit flush point for
+ * streaming output.
+ *
+ * @see TemplateOutput#flush()
+ * @author jdp
+ */
+public final class FlushNode extends TemplateNode {
+
+    public final static String Pragma = "flush";
+
+    FlushNode(int lno) {
+        super(lno);
+    }
+
+    @Override
+    public void evaluate(TemplateDataDictionary dict, TemplateLoader context, TemplateOutput out)
+        throws TemplateException {
+        out.flush();
+    }
+}
@@ -25,16 +25,19 @@
  */
 package hapax.parser;
 
-import java.io.PrintWriter;
-import java.io.StringWriter;
 import java.util.List;
 
+import hapax.FragmentCache;
 import hapax.Iterator;
 import hapax.Modifiers;
+import hapax.StreamingSection;
+import hapax.SlotDictionary;
+import hapax.SlotTable;
 import hapax.Template;
 import hapax.TemplateDataDictionary;
 import hapax.TemplateException;
 import hapax.TemplateLoader;
+import hapax.TemplateOutput;
 
 /**
  * Represents an <code>{{&gt;<i>name</i>}}</code> include section.
@@ -46,13 +49,19 @@ public final class IncludeNode extends TemplateNode implements TemplateNode.Sect
 
     private final String name;
 
-    final List<Modifiers.FLAGS> modifiers;
+    private final int slot;
 
-    IncludeNode(int lno, String spec) {
+    final Modifiers.Chain modifiers;
+
+    IncludeNode(int lno, String spec) throws TemplateParserException {
+        this(lno, spec.split(":"));
+    }
+
+    IncludeNode(int lno, String[] spec) throws TemplateParserException {
         super(lno);
-        String split[] = spec.split(":");
-        this.name = split[0];
-        this.modifiers = Modifiers.parseModifiers(split);
+        this.name = spec[0];
+        this.slot = SlotTable.Slot(this.name);
+        this.modifiers = Compile(lno, spec);
     }
 
     @Override
@@ -61,11 +70,15 @@ public final class IncludeNode extends TemplateNode implements TemplateNode.Sect
     }
 
     @Override
-    public final void evaluate(TemplateDataDictionary dict, TemplateLoader context, PrintWriter out)
-        throws TemplateException {
+    public final void evaluate(TemplateDataDictionary dict, TemplateLoader context,
+        TemplateOutput out) throws TemplateException {
         String sectionName = this.name;
 
-        List<TemplateDataDictionary> section = dict.getSection(sectionName);
+        List<TemplateDataDictionary> section;
+        if (dict instanceof SlotDictionary && -1 < this.slot)
+            section = ((SlotDictionary) dict).getSection(this.slot);
+        else
+            section = dict.getSection(sectionName);
 
         if (null != section) {
 
@@ -73,45 +86,83 @@ public final class IncludeNode extends TemplateNode implements TemplateNode.Sect
 
             Template template = context.getTemplate(filename);
             if (null != template) {
+                /*
+                 * Cached rendering
+                 */
+                FragmentCache fragments = template.getFragmentCache();
+                if (null != fragments && fragments.accept(filename)) {
+
+                    String content = FragmentCache.Content(dict, sectionName, template
+                        .getReferences());
+                    if (null != content) {
+
+                        String fragment = fragments.get(template, sectionName, content);
+                        if (null == fragment) {
+                            TemplateOutput.Text buffer = new TemplateOutput.Text();
+
+                            this.render(template, dict, section, buffer);
+
+                            fragment = buffer.toString();
+                            fragments.put(template, sectionName, content, fragment);
+                        } else
+                            FragmentCache.Hit(dict, sectionName, section, template);
+
+                        if (this.modifiers.isEmpty()) out.write(fragment);
+                        else {
+                            Modifiers.Escaper escaper = this.modifiers.escaper(out);
+                            escaper.write(fragment);
+                            escaper.complete();
+                        }
+                        return;
+                    }
+                }
                 /*
                  * Modified rendering
                  */
-                PrintWriter previous_printwriter = null;
-                StringWriter sw = null;
-                if (!this.modifiers.isEmpty()) {
-                    previous_printwriter = out;
-                    sw = new StringWriter();
-                    out = new PrintWriter(sw);
+                if (this.modifiers.isEmpty()) this.render(template, dict, section, out);
+                else {
+                    Modifiers.Escaper escaper = this.modifiers.escaper(out);
+
+                    this.render(template, dict, section, escaper);
+
+                    escaper.complete();
                 }
+            }
+        }
+    }
 
-                if (section.size() == 0) {
+    private void render(Template template, TemplateDataDictionary dict,
+        List<TemplateDataDictionary> section, TemplateOutput out) throws TemplateException {
+        String sectionName = this.name;
 
-                    Iterator.Define(dict, sectionName, 0, 1);
-                    /*
-                     * Once
-                     */
-                    template.render(dict, out);
-                } else {
-                    /*
-                     * Repeat
-                     */
-                    for (int cc = 0, count = section.size(); cc < count; cc++) {
+        if (section instanceof StreamingSection) {
+            /*
+             * Rows pulled in turn, and completed by the template
+             */
+            StreamingSection rows = (StreamingSection) section;
+            TemplateDataDictionary child;
+            while (null != (child = rows.next(sectionName))) {
 
-                        TemplateDataDictionary child = section.get(cc);
+                template.render(child, out);
+            }
+        } else if (section.size() == 0) {
 
-                        Iterator.Define(child, sectionName, cc, count);
+            Iterator.Define(dict, sectionName, 0, 1);
+            /*
+             * Once
+             */
+            template.render(dict, out);
+        } else {
+            /*
+             * Repeat
+             */
+            for (int cc = 0, count = section.size(); cc < count; cc++) {
 
-                        template.render(child, out);
-                    }
-                }
+                TemplateDataDictionary child = section.get(cc);
 
-                /*
-                 */
-                if (previous_printwriter != null) {
-                    String results = sw.toString();
-                    out = previous_printwriter;
-                    out.write(Modifiers.applyModifiers(results, this.modifiers));
-                }
+                Iterator.Define(child, sectionName, cc, count);
+
+                template.render(child, out);
             }
         }
     }
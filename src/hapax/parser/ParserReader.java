@@ -25,34 +25,108 @@
  */
 package hapax.parser;
 
+import java.io.IOException;
+import java.io.Reader;
+
 /**
- * Line number string reader
+ * Line number string reader. The reader advances a cursor over one immutable
+ * source buffer, so consuming a token never copies the remaining input. Tokens
+ * are handed out as offset and length slices of the buffer, and line numbers
+ * are counted incrementally over each consumed slice.
+ *
+ * When reading from a {@link Reader} the buffer is a window over the source:
+ * consumed input is discarded as the window is refilled, and the window only
+ * grows for a single token longer than the window.
  *
  * @author jdp
  */
 public final class ParserReader implements CharSequence {
 
+    /**
+     * Thrown from reader methods when the underlying source fails.
+     */
+    public final static class SourceException extends RuntimeException {
+
+        private static final long serialVersionUID = 2415360214326487631L;
+
+        public SourceException(IOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+
+    public final static int Window = 0x2000;
+
     private char[] buffer;
 
+    private int limit;
+
+    private int offset;
+
+    private Reader source;
+
     private int lno = 1;
 
     private int advance;
 
     public ParserReader(String string) {
         super();
-        if (null != string && 0 != string.length()) this.buffer = string.toCharArray();
+        if (null != string && 0 != string.length()) {
+            this.buffer = string.toCharArray();
+            this.limit = this.buffer.length;
+        } else {
+            this.buffer = null;
+            this.limit = 0;
+        }
+    }
+
+    public ParserReader(char[] buffer, int offset, int length) {
+        super();
+        if (null != buffer && -1 < offset && -1 < length && (offset + length) <= buffer.length) {
+            this.buffer = buffer;
+            this.offset = offset;
+            this.limit = (offset + length);
+        } else
+            throw new IndexOutOfBoundsException(String.valueOf(offset) + ':' + String.valueOf(length));
+    }
+
+    public ParserReader(Reader source) {
+        this(source, Window);
+    }
+
+    public ParserReader(Reader source, int window) {
+        super();
+        if (null != source && 1 < window) {
+            this.buffer = new char[window];
+            this.source = source;
+        } else
+            throw new IllegalArgumentException();
     }
 
     public int lineNumber() {
         return this.lno;
     }
 
+    /**
+     * @return Source fully buffered
+     */
+    public boolean isComplete() {
+        return (null == this.source);
+    }
+
+    /**
+     * @return Remaining input in the buffer, having read more from the source
+     *         when the buffer is empty
+     */
     @Override
     public int length() {
-        char[] buf = this.buffer;
-        if (null != buf) return buf.length;
-        else
-            return 0;
+        if (this.offset == this.limit) this.fill(1, false);
+
+        return (this.limit - this.offset);
     }
 
     public boolean next() {
@@ -60,173 +134,216 @@ public final class ParserReader implements CharSequence {
         return true;
     }
 
+    /**
+     * @return Absolute buffer offset of the cursor
+     */
+    public int position() {
+        return this.offset;
+    }
+
     @Override
     public char charAt(int idx) {
 
-        idx += this.advance;
+        idx += (this.offset + this.advance);
 
-        char[] buf = this.buffer;
-        if (null != buf) {
-            if (-1 < idx && idx < buf.length) return buf[idx];
-            else
-                throw new IndexOutOfBoundsException(String.valueOf(idx) + ":{" + buf.length + '}');
-        } else
-            throw new IndexOutOfBoundsException(String.valueOf(idx) + ":{0}");
+        if (idx >= this.limit) idx -= this.fill(idx + 1 - this.offset, true);
+
+        if (this.offset <= idx && idx < this.limit) return this.buffer[idx];
+        else
+            throw new IndexOutOfBoundsException(
+                String.valueOf(idx - this.offset) + ":{" + this.length() + '}');
+    }
+
+    /**
+     * @param idx
+     *            Index relative to the cursor, not the advance over an open
+     *            brace run, within the buffered input
+     */
+    public char charAtCursor(int idx) {
+        if (-1 < idx && idx < (this.limit - this.offset)) return this.buffer[this.offset + idx];
+        else
+            throw new IndexOutOfBoundsException(String.valueOf(idx) + ":{" + this.length() + '}');
     }
 
     public char charAtTest(int idx) {
 
-        idx += this.advance;
+        idx += (this.offset + this.advance);
 
-        char[] buf = this.buffer;
-        if (null != buf) {
-            if (-1 < idx && idx < buf.length) return buf[idx];
-            else
-                return 0;
-        } else
+        if (idx >= this.limit) idx -= this.fill(idx + 1 - this.offset, true);
+
+        if (this.offset <= idx && idx < this.limit) return this.buffer[idx];
+        else
             return 0;
     }
 
+    /**
+     * @return Index relative to the cursor, or negative one
+     */
     public int indexOf(String s) {
-        if (null != s && 0 != s.length()) {
-            char[] search = s.toCharArray();
-            char[] buf = this.buffer;
-            if (null != buf) {
-                int sc = 0;
-                int scc = search.length;
-                int start = -1;
+        return this.indexOf(s, true);
+    }
 
-                int idx = this.advance;
-                int idxc = buf.length;
+    /**
+     * @param grow
+     *            When false, search only as far as the current buffer can hold
+     *            without growing it. A negative result from an incomplete
+     *            source means that the buffer is full.
+     * @return Index relative to the cursor, or negative one
+     */
+    public int indexOf(String s, boolean grow) {
+        if (null != s && 0 != s.length()) {
+            char first = s.charAt(0);
+            int scc = s.length();
+            int from = this.advance;
 
-                for (; idx < idxc; idx++) {
+            while (true) {
+                char[] buf = this.buffer;
+                int term = (this.limit - scc);
 
-                    if (buf[idx] == search[sc++]) {
+                for (int idx = (this.offset + from); idx <= term; idx++) {
 
-                        if (-1 == start) start = idx;
+                    if (first == buf[idx]) {
+                        int sc = 1;
+                        while (sc < scc && buf[idx + sc] == s.charAt(sc))
+                            sc++;
 
-                        if (sc >= scc) return start;
-                        else
-                            continue;
-                    } else {
-                        start = -1;
-                        sc = 0;
-                        continue;
+                        if (sc == scc) return (idx - this.offset);
                     }
                 }
+                /*
+                 * Resume with the partial match at the end of the buffer
+                 */
+                int searched = (this.limit - this.offset);
+                if (null == this.source || (!grow && searched == this.buffer.length)) return -1;
+                else {
+                    this.fill(searched + 1, grow);
+                    from = Math.max(from, (searched - scc + 1));
+                }
             }
-            return -1;
         } else
             throw new IllegalArgumentException(s);
     }
 
+    /**
+     * Advance the cursor over the argument number of characters, counting
+     * lines as they are consumed.
+     *
+     * @param len
+     *            Token length from the cursor
+     * @return Absolute buffer offset of the consumed token
+     */
+    public int consume(int len) {
+
+        int start = this.offset;
+        int end = (start + len);
+        if (-1 < len && end <= this.limit) {
+
+            this.lno += CountLines(this.buffer, start, end);
+            this.offset = end;
+            this.advance = 0;
+            return start;
+        } else
+            throw new IndexOutOfBoundsException(String.valueOf(len) + ":{" + this.length() + '}');
+    }
+
     /**
      * @param start
-     *            Offset index, inclusive
+     *            Absolute buffer offset, inclusive
      * @param end
-     *            Offset index, exclusive
+     *            Absolute buffer offset, exclusive
+     * @return Slice of the buffer
      */
-    public String delete(int start, int end) {
+    public String substring(int start, int end) {
+        if (start == end) return "";
+        else if (-1 < start && start < end && end <= this.limit)
+            return new String(this.buffer, start, (end - start));
+        else
+            throw new IndexOutOfBoundsException(
+                String.valueOf(start) + ':' + String.valueOf(end) + ":{" + this.limit + '}');
+    }
 
+    /**
+     * @param start
+     *            Absolute buffer offset, inclusive
+     * @param end
+     *            Absolute buffer offset, exclusive
+     * @return Slice of the buffer without leading or trailing white space
+     */
+    public String trim(int start, int end) {
         char[] buf = this.buffer;
-        if (null != buf) {
-            int buflen = buf.length;
-            if ((-1 < start && start < buflen) && (start <= end && end <= buflen)) {
-                if (start == end) return "";
-                else {
-                    int relen = (end - start);
-                    char[] re = new char[relen];
-                    System.arraycopy(buf, start, re, 0, relen);
-                    int nblen = (buflen - relen);
-                    if (0 == nblen) this.buffer = null;
-                    else {
-                        int term = (buflen - 1);
-                        char[] nb = new char[nblen];
-                        if (0 == start) {
-                            /*
-                             * Copy buffer tail to new buffer
-                             */
-                            System.arraycopy(buf, end, nb, 0, nblen);
-                            this.buffer = nb;
-                        } else if (term == end) {
-                            /*
-                             * Copy buffer head to new buffer
-                             */
-                            System.arraycopy(buf, 0, nb, 0, nblen);
-                            this.buffer = nb;
-                        } else {
-                            /*
-                             * Copy buffer head & tail to new buffer
-                             */
-                            int nbalen = start;
-                            int nbblen = buflen - end;
-                            System.arraycopy(buf, 0, nb, 0, nbalen);
-                            System.arraycopy(buf, end, nb, nbalen, nbblen);
-                            this.buffer = nb;
-                        }
-                    }
-                    return this.lines(re, 0, relen);
-                }
-            } else
-                throw new IndexOutOfBoundsException(
-                    String.valueOf(start) + ':' + String.valueOf(start) + ":{" + buf.length + '}');
-        } else
-            throw new IndexOutOfBoundsException(
-                String.valueOf(start) + ':' + String.valueOf(start) + ":{0}");
+        while (start < end && ' ' >= buf[start])
+            start++;
+        while (start < end && ' ' >= buf[end - 1])
+            end--;
+        return this.substring(start, end);
     }
 
+    /**
+     * @return Remaining input, consumed
+     */
     public String truncate() {
-
-        char[] buf = this.buffer;
-        this.buffer = null;
-        return this.lines(buf, 0, -1);
+        int len = this.length();
+        int start = this.consume(len);
+        return this.substring(start, start + len);
     }
 
     @Override
     public CharSequence subSequence(int start, int end) {
 
-        char[] buf = this.buffer;
-        if (null != buf) {
-            int buflen = buf.length;
-            if ((-1 < start && start < buflen) && (start <= end && end <= buflen)) {
-                if (start == end) return "";
-                else {
-                    int relen = (end - start);
-                    char[] re = new char[relen];
-                    System.arraycopy(buf, start, re, 0, relen);
-                    return new String(re, 0, relen);
-                }
-            } else
-                throw new IndexOutOfBoundsException(
-                    String.valueOf(start) + ':' + String.valueOf(start) + ":{" + buf.length + '}');
-        } else
-            throw new IndexOutOfBoundsException(
-                String.valueOf(start) + ':' + String.valueOf(start) + ":{0}");
+        return this.substring(this.offset + start, this.offset + end);
     }
 
     @Override
     public String toString() {
 
-        char[] buf = this.buffer;
-        if (null != buf) return new String(buf, 0, buf.length);
-        else
-            return "";
+        return this.substring(this.offset, this.limit);
     }
 
-    protected String lines(char[] re, int ofs, int len) {
-
-        this.advance = 0;
-
-        if (-1 == len) len = ((null != re) ? (re.length) : (0));
-
-        this.lno += CountLines(re, ofs, len);
-
-        return new String(re, ofs, len);
+    /**
+     * Read from the source until the argument number of characters are
+     * buffered from the cursor, or the source is exhausted. Consumed input is
+     * discarded from the head of the buffer.
+     *
+     * @param grow
+     *            Grow the buffer when required to satisfy the request.
+     * @return Distance the buffer content was moved toward its head
+     */
+    private int fill(int need, boolean grow) {
+        Reader source = this.source;
+        if (null == source) return 0;
+        else {
+            int shift = this.offset;
+            int remaining = (this.limit - shift);
+            char[] buf = this.buffer;
+            if (need > buf.length && grow) {
+                char[] nb = new char[Math.max(need, (buf.length << 1))];
+                System.arraycopy(buf, shift, nb, 0, remaining);
+                this.buffer = buf = nb;
+            } else if (0 != shift) {
+                System.arraycopy(buf, shift, buf, 0, remaining);
+            }
+            this.offset = 0;
+            this.limit = remaining;
+            try {
+                int read;
+                while (this.limit < need && this.limit < buf.length) {
+                    read = source.read(buf, this.limit, (buf.length - this.limit));
+                    if (-1 == read) {
+                        this.source = null;
+                        break;
+                    } else
+                        this.limit += read;
+                }
+            } catch (IOException exc) {
+                throw new SourceException(exc);
+            }
+            return shift;
+        }
     }
 
-    protected static int CountLines(char[] re, int ofs, int len) {
+    protected static int CountLines(char[] re, int ofs, int end) {
         int num = 0;
-        for (; ofs < len; ofs++) {
+        for (; ofs < end; ofs++) {
             if ('\n' == re[ofs]) num += 1;
         }
         return num;
@@ -0,0 +1,435 @@
+/*
+ * Hapax2
+ * Copyright (c) 2007 Doug Coker
+ * Copyright (c) 2009 John Pritchard
+ *
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hapax.parser;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import hapax.Modifiers;
+import hapax.TemplateException;
+
+/**
+ * Versioned binary form of a parsed template, conventionally stored next to
+ * its source with the extension <code>".xtmc"</code>. Loading a precompiled
+ * template decodes the node tree without parsing.
+ *
+ * <pre>
+ * magic     int    'HPXC'
+ * version   short
+ * strip     byte   Strip ordinal
+ * optimizer byte   TemplateOptimizer options, as bits by ordinal
+ * strings   int count, then per string int length and UTF-8 bytes
+ * template  int count, then per node
+ *   opcode  byte
+ *   line    int
+ *   TEXT    int text
+ *   COMMENT int text
+ *   FLUSH
+ *   VARIABLE, INCLUDE
+ *           int name, unsigned byte count, then per modifier int spec, as "name=argument"
+ *   SECTION int name, byte constant, int count, then the body nodes
+ * </pre>
+ *
+ * String operands are indexes into the string table. The strip mode and
+ * optimizer options of the {@link CTemplateParser} that produced the template
+ * are recorded, and a precompiled template is only read for a loader parser
+ * having the same options. The main method precompiles a directory of
+ * templates, and is used by the <code>precompile</code> target of the Ant
+ * build.
+ *
+ * @author jdp
+ */
+public final class PrecompiledTemplate {
+
+    public final static String Extension = ".xtmc";
+
+    public final static int Magic = 0x48505843;
+
+    public final static short Version = 2;
+
+    private final static byte TEXT = 1, VARIABLE = 2, SECTION = 3, INCLUDE = 4, COMMENT = 5,
+        FLUSH = 6;
+
+    /**
+     * Precompile the templates in each directory argument, recursively, when
+     * the source is newer than its precompiled file, or the precompiled file
+     * was produced with other parser options. The option
+     * <code>"-strip MODE"</code> selects the {@link Strip} mode of the
+     * directories that follow it.
+     */
+    public static void main(String[] argv) {
+        try {
+            CTemplateParser parser = (CTemplateParser) CTemplateParser.Instance;
+            int count = 0;
+            for (int cc = 0; cc < argv.length; cc++) {
+                String arg = argv[cc];
+                if ("-strip".equals(arg) && (cc + 1) < argv.length) parser = new CTemplateParser(
+                    Strip.valueOf(argv[++cc]));
+                else
+                    count += Compile(new File(arg), parser);
+            }
+            System.out.println("Precompiled " + count + " templates");
+        } catch (Exception exc) {
+            exc.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @return Number of templates compiled
+     */
+    public final static int Compile(File file) throws IOException, TemplateException {
+        return Compile(file, (CTemplateParser) CTemplateParser.Instance);
+    }
+
+    /**
+     * Template source is decoded in the platform default charset, as by the
+     * template loaders.
+     *
+     * @return Number of templates compiled
+     */
+    public final static int Compile(File file, CTemplateParser parser) throws IOException,
+        TemplateException {
+        if (file.isDirectory()) {
+            int count = 0;
+            File[] list = file.listFiles();
+            if (null != list) {
+                for (File child : list) {
+                    count += Compile(child, parser);
+                }
+            }
+            return count;
+        } else if (file.getName().endsWith(".xtm")) {
+            File target = new File(file.getPath() + 'c');
+            if (target.lastModified() < file.lastModified() || !Current(target, parser)) {
+                List<TemplateNode> template;
+                Reader reader = new InputStreamReader(new FileInputStream(file),
+                    Charset.defaultCharset());
+                try {
+                    template = parser.parse(null, reader);
+                } finally {
+                    reader.close();
+                }
+                OutputStream out = new FileOutputStream(target);
+                try {
+                    Write(template, parser, out);
+                } finally {
+                    out.close();
+                }
+                return 1;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return The file has the header of this version and the parser options
+     */
+    private final static boolean Current(File target, CTemplateParser parser) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(target));
+        try {
+            return (Magic == in.readInt() && Version == in.readShort()
+                && parser.getStrip().ordinal() == in.readByte() && parser.getOptimizer()
+                .options() == in.readByte());
+        } catch (EOFException truncated) {
+            return false;
+        } finally {
+            in.close();
+        }
+    }
+
+    public final static void Write(List<TemplateNode> template, OutputStream out)
+        throws IOException {
+        Write(template, (CTemplateParser) CTemplateParser.Instance, out);
+    }
+
+    /**
+     * @param parser
+     *            Parser that produced the template, whose options are recorded
+     */
+    public final static void Write(List<TemplateNode> template, CTemplateParser parser,
+        OutputStream out) throws IOException {
+        Map<String, Integer> strings = new LinkedHashMap<String, Integer>();
+        ByteArrayOutputStream nodes = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(nodes);
+
+        data.writeInt(template.size());
+        for (TemplateNode node : template) {
+            Write(node, strings, data);
+        }
+        data.flush();
+
+        data = new DataOutputStream(out);
+        data.writeInt(Magic);
+        data.writeShort(Version);
+        data.writeByte(parser.getStrip().ordinal());
+        data.writeByte(parser.getOptimizer().options());
+        data.writeInt(strings.size());
+        for (String string : strings.keySet()) {
+            byte[] bytes = string.getBytes("UTF-8");
+            data.writeInt(bytes.length);
+            data.write(bytes);
+        }
+        nodes.writeTo(data);
+        data.flush();
+    }
+
+    /**
+     * Read the precompiled template from the stream, to its end.
+     *
+     * @param parser
+     *            Parser of the loader, or null for the default parser
+     * @throws TemplateParserException
+     *             Precompiled with options other than those of the parser
+     */
+    public final static List<TemplateNode> Read(InputStream in, TemplateParser parser)
+        throws IOException, TemplateParserException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buf = new byte[0x1000];
+        int read;
+        while (0 < (read = in.read(buf, 0, buf.length))) {
+            bytes.write(buf, 0, read);
+        }
+        return Read(ByteBuffer.wrap(bytes.toByteArray()), parser);
+    }
+
+    /**
+     * Map and read the precompiled template file.
+     *
+     * @param parser
+     *            Parser of the loader, or null for the default parser
+     * @throws TemplateParserException
+     *             Precompiled with options other than those of the parser
+     */
+    public final static List<TemplateNode> Read(File file, TemplateParser parser)
+        throws IOException, TemplateParserException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0L, channel.size());
+            return Read(map, parser);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @param parser
+     *            Parser of the loader, or null for the default parser
+     * @throws TemplateParserException
+     *             Precompiled with options other than those of the parser
+     */
+    public final static List<TemplateNode> Read(ByteBuffer in, TemplateParser parser)
+        throws TemplateParserException {
+        try {
+            if (Magic != in.getInt())
+                throw new TemplateParserException("Not a precompiled template");
+            else {
+                short version = in.getShort();
+                if (Version != version) throw new TemplateParserException(
+                    "Unsupported precompiled template version " + version);
+                else {
+                    Options(in, parser);
+
+                    String[] strings = new String[in.getInt()];
+                    byte[] buf = new byte[0x100];
+                    for (int cc = 0; cc < strings.length; cc++) {
+                        int length = in.getInt();
+                        if (length > buf.length) buf = new byte[length];
+                        in.get(buf, 0, length);
+                        strings[cc] = new String(buf, 0, length, "UTF-8");
+                    }
+                    return Read(in, strings);
+                }
+            }
+        } catch (BufferUnderflowException exc) {
+            throw new TemplateParserException("Truncated precompiled template", exc);
+        } catch (IndexOutOfBoundsException exc) {
+            throw new TemplateParserException("Corrupt precompiled template", exc);
+        } catch (NegativeArraySizeException exc) {
+            throw new TemplateParserException("Corrupt precompiled template", exc);
+        } catch (UnsupportedEncodingException exc) {
+            throw new IllegalStateException(exc);
+        }
+    }
+
+    /**
+     * Compare the recorded parser options with those of the parser.
+     */
+    private final static void Options(ByteBuffer in, TemplateParser parser)
+        throws TemplateParserException {
+        if (null == parser) parser = CTemplateParser.Instance;
+
+        int strip = in.get(), optimizer = in.get();
+
+        if (!(parser instanceof CTemplateParser)) throw new TemplateParserException(
+            "Precompiled template requires the CTemplateParser");
+        else {
+            CTemplateParser options = (CTemplateParser) parser;
+            if (strip != options.getStrip().ordinal()
+                || optimizer != options.getOptimizer().options())
+                throw new TemplateParserException(
+                    "Precompiled template options differ from those of the parser");
+        }
+    }
+
+    private final static List<TemplateNode> Read(ByteBuffer in, String[] strings)
+        throws TemplateParserException {
+        int count = in.getInt();
+        List<TemplateNode> list = new ArrayList<TemplateNode>(count);
+        for (int cc = 0; cc < count; cc++) {
+
+            byte opcode = in.get();
+            int lno = in.getInt();
+            switch (opcode) {
+                case TEXT:
+                    list.add(new TextNode(lno, strings[in.getInt()]));
+                    break;
+                case COMMENT:
+                    list.add(new CommentNode(lno, strings[in.getInt()]));
+                    break;
+                case FLUSH:
+                    list.add(new FlushNode(lno));
+                    break;
+                case VARIABLE:
+                    list.add(new VariableNode(lno, ReadSpec(in, strings)));
+                    break;
+                case INCLUDE:
+                    list.add(new IncludeNode(lno, ReadSpec(in, strings)));
+                    break;
+                case SECTION: {
+                    SectionNode section = SectionNode.Open(lno, strings[in.getInt()]);
+                    section.constant = (0 != in.get());
+                    List<TemplateNode> body = Read(in, strings);
+                    section.children = body.toArray(new TemplateNode[body.size()]);
+                    list.add(section);
+                }
+                    break;
+                default:
+                    throw new TemplateParserException("Corrupt precompiled template, opcode "
+                        + opcode);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * @return Name followed by modifiers
+     */
+    private final static String[] ReadSpec(ByteBuffer in, String[] strings) {
+        String name = strings[in.getInt()];
+        String[] spec = new String[1 + (in.get() & 0xFF)];
+        spec[0] = name;
+        for (int cc = 1; cc < spec.length; cc++) {
+            spec[cc] = strings[in.getInt()];
+        }
+        return spec;
+    }
+
+    private final static void Write(TemplateNode node, Map<String, Integer> strings,
+        DataOutputStream out) throws IOException {
+
+        if (node instanceof TextNode) {
+            out.writeByte(TEXT);
+            out.writeInt(node.lineNumber);
+            out.writeInt(Index(strings, ((TextNode) node).getText()));
+        } else if (node instanceof CommentNode) {
+            out.writeByte(COMMENT);
+            out.writeInt(node.lineNumber);
+            out.writeInt(Index(strings, ((CommentNode) node).comment));
+        } else if (node instanceof FlushNode) {
+            out.writeByte(FLUSH);
+            out.writeInt(node.lineNumber);
+        } else if (node instanceof VariableNode) {
+            VariableNode variable = (VariableNode) node;
+            out.writeByte(VARIABLE);
+            out.writeInt(node.lineNumber);
+            WriteSpec(variable.getVariableName(), variable.getModifiers(), strings, out);
+        } else if (node instanceof IncludeNode) {
+            IncludeNode include = (IncludeNode) node;
+            out.writeByte(INCLUDE);
+            out.writeInt(node.lineNumber);
+            WriteSpec(include.getSectionName(), include.modifiers.getModifiers(), strings, out);
+        } else if (node instanceof SectionNode) {
+            SectionNode section = (SectionNode) node;
+            TemplateNode[] body = section.getChildren();
+            out.writeByte(SECTION);
+            out.writeInt(node.lineNumber);
+            out.writeInt(Index(strings, section.getSectionName()));
+            out.writeByte(section.isConstant() ? 1 : 0);
+            out.writeInt(body.length);
+            for (TemplateNode child : body) {
+                Write(child, strings, out);
+            }
+        } else
+            throw new IllegalArgumentException(node.getClass().getName());
+    }
+
+    private final static void WriteSpec(String name, List<Modifiers.Modifier> modifiers,
+        Map<String, Integer> strings, DataOutputStream out) throws IOException {
+        if (0xFF < modifiers.size())
+            throw new IllegalArgumentException("More than 255 modifiers of " + name);
+
+        out.writeInt(Index(strings, name));
+        out.writeByte(modifiers.size());
+        for (Modifiers.Modifier modifier : modifiers) {
+            out.writeInt(Index(strings, modifier.toString()));
+        }
+    }
+
+    private final static int Index(Map<String, Integer> strings, String string) {
+        Integer index = strings.get(string);
+        if (null == index) {
+            index = strings.size();
+            strings.put(string, index);
+        }
+        return index;
+    }
+
+    private PrecompiledTemplate() {
+        super();
+    }
+}
@@ -25,13 +25,16 @@
  */
 package hapax.parser;
 
-import java.io.PrintWriter;
 
+import hapax.SlotTable;
 import hapax.TemplateDataDictionary;
 import hapax.TemplateLoader;
+import hapax.TemplateOutput;
 
 /**
- * Implementation of a {{#SECTION_NODE}} and the paired {{/SECTION_NODE}}.
+ * Implementation of a {{#SECTION_NODE}} and the paired {{/SECTION_NODE}}. The
+ * parser nests the body of a section into its open tag, so that a parsed
+ * template contains no close tags.
  *
  * @author dcoker
  */
@@ -51,13 +54,24 @@ public final class SectionNode extends TemplateNode implements TemplateNode.Sect
     }
 
     private final String sectionName_;
+    private final int slot;
     private final TYPE type_;
 
-    volatile int indexOfClose = -1;
+    TemplateNode[] children = None;
+
+    boolean constant;
+
+    /*
+     * References of the body, valid when referenced
+     */
+    private String[] references;
+
+    private volatile boolean referenced;
 
     private SectionNode(int lno, String nodeName, TYPE node_type) {
         super(lno);
         this.sectionName_ = nodeName;
+        this.slot = SlotTable.Slot(nodeName);
         this.type_ = node_type;
     }
 
@@ -71,9 +85,15 @@ public final class SectionNode extends TemplateNode implements TemplateNode.Sect
         return sectionName_;
     }
 
+    /**
+     * @return Slot of the section name, or negative one for none
+     */
+    public int getSectionSlot() {
+        return this.slot;
+    }
+
     @Override
-    public void evaluate(TemplateDataDictionary dict, TemplateLoader context,
-        PrintWriter collector) {
+    public void evaluate(TemplateDataDictionary dict, TemplateLoader context, TemplateOutput out) {
         // do nothing
     }
 
@@ -85,13 +105,31 @@ public final class SectionNode extends TemplateNode implements TemplateNode.Sect
         return type_ == TYPE.CLOSE;
     }
 
-    public int getIndexOfClose() {
-        return this.indexOfClose;
+    /**
+     * @return Section body, not to be modified
+     */
+    public TemplateNode[] getChildren() {
+        return this.children;
+    }
+
+    /**
+     * @return Names referenced by the body, as by {@link TemplateNode#References}
+     */
+    public String[] getReferences() {
+        if (!this.referenced) {
+            this.references = References(this.children);
+            this.referenced = true;
+        }
+        return this.references;
     }
 
-    public int getIndexOfCloseRelative() {
-        int close = this.indexOfClose;
-        int open = this.ofs;
-        return (close - open);
+    /**
+     * @return Body reduced by {@link TemplateOptimizer} to a single text node
+     *         written once per iteration
+     */
+    public boolean isConstant() {
+        return this.constant;
     }
+
+    private final static TemplateNode[] None = {};
 }
@@ -0,0 +1,219 @@
+/*
+ * Hapax2
+ * Copyright (c) 2007 Doug Coker
+ * Copyright (c) 2009 John Pritchard
+ *
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hapax.parser;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Template text whitespace compaction, as ctemplate
+ * <dl>
+ * <dt>{@link #DO_NOT_STRIP}</dt>
+ * <dd>Template text is unchanged.</dd>
+ * <dt>{@link #STRIP_BLANK_LINES}</dt>
+ * <dd>Lines containing only whitespace are removed. The whitespace and
+ * newline are removed from lines containing only whitespace and section,
+ * comment, pragma or include markers.</dd>
+ * <dt>{@link #STRIP_WHITESPACE}</dt>
+ * <dd>In addition, leading and trailing whitespace is removed from every line,
+ * and lines are joined without newlines.</dd>
+ * </dl>
+ * Stripping is applied once to the template text when the template is parsed.
+ *
+ * @author jdp
+ */
+public enum Strip {
+    DO_NOT_STRIP,
+    STRIP_BLANK_LINES,
+    STRIP_WHITESPACE;
+
+    /**
+     * Line fragment of template text.
+     */
+    private final static class Text {
+
+        final int lno;
+
+        String text;
+
+        Text(int lno, String text) {
+            super();
+            this.lno = lno;
+            this.text = text;
+        }
+    }
+
+    /**
+     * Reassembles lines into nodes.
+     */
+    private final static class Output {
+
+        final List<TemplateNode> list = new ArrayList<TemplateNode>();
+
+        StringBuilder text;
+
+        int lno;
+
+        void add(Object item) {
+            if (item instanceof Text) this.add(((Text) item).lno, ((Text) item).text);
+            else {
+                this.flush();
+                this.list.add((TemplateNode) item);
+            }
+        }
+
+        void add(int lno, String string) {
+            if (0 != string.length()) {
+                if (null == this.text) {
+                    this.text = new StringBuilder(string);
+                    this.lno = lno;
+                } else
+                    this.text.append(string);
+            }
+        }
+
+        List<TemplateNode> close() {
+            this.flush();
+            return this.list;
+        }
+
+        void flush() {
+            if (null != this.text) {
+                this.list.add(new TextNode(this.lno, this.text.toString()));
+                this.text = null;
+            }
+        }
+    }
+
+    /**
+     * @param template
+     *            Parsed list before sections are nested
+     */
+    List<TemplateNode> strip(List<TemplateNode> template) {
+        if (DO_NOT_STRIP == this) return template;
+        else {
+            Output out = new Output();
+            List<Object> line = new ArrayList<Object>();
+
+            for (TemplateNode node : template) {
+
+                if (node instanceof TextNode) {
+                    String text = ((TextNode) node).getText();
+                    int lno = node.lineNumber;
+                    int start = 0, end;
+                    while (-1 != (end = text.indexOf('\n', start))) {
+                        if (start < end) line.add(new Text(lno, text.substring(start, end)));
+
+                        this.line(line, lno, true, out);
+                        lno += 1;
+                        start = (end + 1);
+                    }
+                    if (start < text.length()) line.add(new Text(lno, text.substring(start)));
+                } else
+                    line.add(node);
+            }
+            this.line(line, 0, false, out);
+
+            return out.close();
+        }
+    }
+
+    private void line(List<Object> line, int lno, boolean newline, Output out) {
+        boolean content = false;
+        for (Object item : line) {
+            if (item instanceof Text) {
+                if (!IsWhitespace(((Text) item).text)) {
+                    content = true;
+                    break;
+                }
+            } else if (!IsRemovable(item)) {
+                content = true;
+                break;
+            }
+        }
+
+        if (!content) {
+            /*
+             * Blank line, or markers only
+             */
+            for (Object item : line) {
+                if (!(item instanceof Text)) out.add(item);
+            }
+        } else if (STRIP_WHITESPACE == this) {
+
+            int first = 0, last = (line.size() - 1);
+            for (; line.get(first) instanceof Text; first++) {
+                Text text = (Text) line.get(first);
+                text.text = TrimLeading(text.text);
+                if (0 != text.text.length()) break;
+            }
+            for (; line.get(last) instanceof Text; last--) {
+                Text text = (Text) line.get(last);
+                text.text = TrimTrailing(text.text);
+                if (0 != text.text.length()) break;
+            }
+            for (int cc = first; cc <= last; cc++) {
+                out.add(line.get(cc));
+            }
+        } else {
+            for (Object item : line) {
+                out.add(item);
+            }
+            if (newline) out.add(lno, "\n");
+        }
+        line.clear();
+    }
+
+    private final static boolean IsRemovable(Object node) {
+        return (node instanceof SectionNode || node instanceof CommentNode
+            || node instanceof IncludeNode || node instanceof FlushNode);
+    }
+
+    private final static boolean IsWhitespace(char ch) {
+        return (ch <= ' ' && ch != '\n');
+    }
+
+    private final static boolean IsWhitespace(String string) {
+        for (int cc = 0, count = string.length(); cc < count; cc++) {
+            if (!IsWhitespace(string.charAt(cc))) return false;
+        }
+        return true;
+    }
+
+    private final static String TrimLeading(String string) {
+        int start = 0, end = string.length();
+        while (start < end && IsWhitespace(string.charAt(start)))
+            start++;
+        return string.substring(start);
+    }
+
+    private final static String TrimTrailing(String string) {
+        int end = string.length();
+        while (0 < end && IsWhitespace(string.charAt(end - 1)))
+            end--;
+        return string.substring(0, end);
+    }
+}
@@ -26,10 +26,14 @@
 package hapax.parser;
 
 import java.io.PrintWriter;
+import java.util.LinkedHashSet;
+import java.util.Set;
 
+import hapax.Modifiers;
 import hapax.TemplateDataDictionary;
 import hapax.TemplateException;
 import hapax.TemplateLoader;
+import hapax.TemplateOutput;
 
 /**
  * All tokens in the template language are represented by instances of a
@@ -57,19 +61,63 @@ public abstract class TemplateNode {
 
     public final int lineNumber;
 
-    volatile int ofs = -1;
-
     TemplateNode(int lno) {
         super();
         this.lineNumber = lno;
     }
 
+    /**
+     * @return Modifiers following the name of a variable or include
+     */
+    static Modifiers.Chain Compile(int lno, String[] spec) throws TemplateParserException {
+        try {
+            return Modifiers.compile(spec);
+        } catch (TemplateParserException exc) {
+            throw new TemplateParserException(exc.getMessage() + " at line " + lno + ".", exc
+                .getCause());
+        }
+    }
+
+    /**
+     * @return Names of the variables and sections referenced by the template,
+     *         or null for a template including other templates, whose
+     *         references are known only when rendered
+     */
+    public final static String[] References(TemplateNode[] template) {
+        Set<String> names = new LinkedHashSet<String>();
+        if (References(template, names)) return names.toArray(new String[names.size()]);
+        else
+            return null;
+    }
+
+    private final static boolean References(TemplateNode[] template, Set<String> names) {
+        for (TemplateNode node : template) {
+            if (node instanceof IncludeNode) return false;
+            else if (node instanceof VariableNode)
+                names.add(((VariableNode) node).getVariableName());
+            else if (node instanceof SectionNode) {
+                SectionNode section = (SectionNode) node;
+                names.add(section.getSectionName());
+                if (!References(section.getChildren(), names)) return false;
+            }
+        }
+        return true;
+    }
+
     public TemplateType getTemplateType() {
         return TemplateType.TemplateTypeNode;
     }
 
-    public void evaluate(TemplateDataDictionary dict, TemplateLoader context, PrintWriter collector)
+    public void evaluate(TemplateDataDictionary dict, TemplateLoader context, TemplateOutput out)
         throws TemplateException {
     }
 
+    /**
+     * Character output adapter to {@link #evaluate(TemplateDataDictionary,TemplateLoader,TemplateOutput)}.
+     */
+    public final void evaluate(TemplateDataDictionary dict, TemplateLoader context,
+        PrintWriter collector) throws TemplateException {
+        this.evaluate(dict, context, new TemplateOutput.Chars(collector));
+    }
+
 }
@@ -0,0 +1,231 @@
+/*
+ * Hapax2
+ * Copyright (c) 2007 Doug Coker
+ * Copyright (c) 2009 John Pritchard
+ *
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hapax.parser;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Post parse pass reducing the number of nodes dispatched by the render loop.
+ * The options are
+ * <dl>
+ * <dt>{@link Option#COALESCE_TEXT}</dt>
+ * <dd>Merge consecutive text nodes into one.</dd>
+ * <dt>{@link Option#DROP_COMMENTS}</dt>
+ * <dd>Remove comment nodes.</dd>
+ * <dt>{@link Option#COLLAPSE_STATIC_SECTIONS}</dt>
+ * <dd>Reduce the body of a section containing only text to a single text node
+ * written once per iteration, without defining the iteration sections of
+ * {@link hapax.Iterator}. Sections with an empty body are removed. The
+ * iteration sections are not defined in the rows, or in the dictionary of a
+ * section without rows, so this option is not in the {@link #Default}
+ * options.</dd>
+ * </dl>
+ * Optimization never modifies its input, and the default options don't change
+ * how a template renders.
+ *
+ * @author jdp
+ */
+public final class TemplateOptimizer {
+
+    public enum Option {
+        COALESCE_TEXT,
+        DROP_COMMENTS,
+        COLLAPSE_STATIC_SECTIONS;
+    }
+
+    /**
+     * Options that don't change rendering: coalesce text and drop comments.
+     */
+    public final static TemplateOptimizer Default = new TemplateOptimizer(EnumSet.of(
+        Option.COALESCE_TEXT, Option.DROP_COMMENTS));
+
+    /**
+     * All options, including {@link Option#COLLAPSE_STATIC_SECTIONS}.
+     */
+    public final static TemplateOptimizer All = new TemplateOptimizer(
+        EnumSet.allOf(Option.class));
+
+    /**
+     * No options, parsed templates are unchanged.
+     */
+    public final static TemplateOptimizer None = new TemplateOptimizer(
+        EnumSet.noneOf(Option.class));
+
+    /**
+     * Optimized template with node counts before and after.
+     */
+    public final static class Result {
+
+        public final List<TemplateNode> template;
+
+        public final int before, after;
+
+        Result(List<TemplateNode> template, int before, int after) {
+            super();
+            this.template = template;
+            this.before = before;
+            this.after = after;
+        }
+
+        public int getEliminated() {
+            return (this.before - this.after);
+        }
+    }
+
+    private final boolean coalesce, comments, sections;
+
+    private final AtomicLong before = new AtomicLong(), after = new AtomicLong();
+
+    public TemplateOptimizer(Set<Option> options) {
+        super();
+        this.coalesce = options.contains(Option.COALESCE_TEXT);
+        this.comments = options.contains(Option.DROP_COMMENTS);
+        this.sections = options.contains(Option.COLLAPSE_STATIC_SECTIONS);
+    }
+
+    /**
+     * @return Options as bits by ordinal, recorded by {@link PrecompiledTemplate}
+     */
+    int options() {
+        int options = 0;
+        if (this.coalesce) options |= (1 << Option.COALESCE_TEXT.ordinal());
+        if (this.comments) options |= (1 << Option.DROP_COMMENTS.ordinal());
+        if (this.sections) options |= (1 << Option.COLLAPSE_STATIC_SECTIONS.ordinal());
+        return options;
+    }
+
+    public Result optimize(List<TemplateNode> template) {
+        TemplateNode[] nodes = template.toArray(new TemplateNode[template.size()]);
+        int before = Count(nodes);
+        List<TemplateNode> optimized = this.optimize(nodes);
+        int after = Count(optimized.toArray(new TemplateNode[optimized.size()]));
+
+        this.before.addAndGet(before);
+        this.after.addAndGet(after);
+
+        return new Result(optimized, before, after);
+    }
+
+    /**
+     * @return Total nodes in templates optimized by this instance
+     */
+    public long getNodesProcessed() {
+        return this.before.get();
+    }
+
+    /**
+     * @return Total nodes eliminated from templates optimized by this instance
+     */
+    public long getNodesEliminated() {
+        return (this.before.get() - this.after.get());
+    }
+
+    private List<TemplateNode> optimize(TemplateNode[] template) {
+        List<TemplateNode> list = new ArrayList<TemplateNode>(template.length);
+        StringBuilder text = null;
+        TextNode first = null;
+
+        for (TemplateNode node : template) {
+
+            if (node instanceof TextNode && this.coalesce) {
+                TextNode textNode = (TextNode) node;
+                if (null == first) first = textNode;
+                else {
+                    if (null == text) text = new StringBuilder(first.getText());
+                    text.append(textNode.getText());
+                }
+                continue;
+            } else if (node instanceof CommentNode && this.comments) {
+                continue;
+            }
+
+            if (null != first) {
+                list.add(Coalesce(first, text));
+                first = null;
+                text = null;
+            }
+
+            if (node instanceof SectionNode) {
+                SectionNode section = this.optimize((SectionNode) node);
+                if (null != section) list.add(section);
+            } else
+                list.add(node);
+        }
+        if (null != first) list.add(Coalesce(first, text));
+
+        return list;
+    }
+
+    private SectionNode optimize(SectionNode section) {
+        List<TemplateNode> body = this.optimize(section.getChildren());
+        SectionNode optimized = SectionNode.Open(section.lineNumber, section.getSectionName());
+        if (this.sections) {
+            if (body.isEmpty())
+
+                return null;
+            else if (IsStatic(body)) {
+                optimized.constant = true;
+                if (1 < body.size()) {
+                    StringBuilder text = new StringBuilder();
+                    for (TemplateNode node : body) {
+                        if (node instanceof TextNode) text.append(((TextNode) node).getText());
+                    }
+                    body.clear();
+                    body.add(new TextNode(section.lineNumber, text.toString()));
+                } else if (!(body.get(0) instanceof TextNode)) {
+                    body.set(0, new TextNode(section.lineNumber, ""));
+                }
+            }
+        }
+        optimized.children = body.toArray(new TemplateNode[body.size()]);
+        return optimized;
+    }
+
+    private final static TextNode Coalesce(TextNode first, StringBuilder text) {
+        if (null == text) return first;
+        else
+            return new TextNode(first.lineNumber, text.toString());
+    }
+
+    private final static boolean IsStatic(List<TemplateNode> body) {
+        for (TemplateNode node : body) {
+            if (!(node instanceof TextNode || node instanceof CommentNode)) return false;
+        }
+        return true;
+    }
+
+    private final static int Count(TemplateNode[] template) {
+        int count = template.length;
+        for (TemplateNode node : template) {
+            if (node instanceof SectionNode) count += Count(((SectionNode) node).getChildren());
+        }
+        return count;
+    }
+}
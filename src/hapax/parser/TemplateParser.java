@@ -36,6 +36,10 @@ import hapax.TemplateLoader;
  */
 public interface TemplateParser {
 
+    /**
+     * @return Top level nodes of the template, with the body of each section
+     *         nested into its {@link SectionNode}
+     */
     public List<TemplateNode> parse(TemplateLoader context, String template)
         throws TemplateParserException;
 }
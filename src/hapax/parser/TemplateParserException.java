@@ -39,4 +39,8 @@ public class TemplateParserException extends TemplateException {
     public TemplateParserException(String details) {
         super(details);
     }
+
+    public TemplateParserException(String details, Throwable cause) {
+        super(details, cause);
+    }
 }
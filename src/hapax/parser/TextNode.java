@@ -25,10 +25,14 @@
  */
 package hapax.parser;
 
-import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
 
 import hapax.TemplateDataDictionary;
+import hapax.TemplateException;
 import hapax.TemplateLoader;
+import hapax.TemplateOutput;
 
 /**
  * Represents a literal string.
@@ -37,16 +41,115 @@ import hapax.TemplateLoader;
  */
 public final class TextNode extends TemplateNode {
 
+    /**
+     * Text encoded for a charset, by the charset encoder rather than
+     * String.getBytes(Charset) which is unavailable before Android API 9.
+     * Encodings for other charsets follow in an immutable list, most recently
+     * added first.
+     */
+    private final static class Encoded {
+
+        final Charset charset;
+
+        final byte[] bytes;
+
+        final Encoded next;
+
+        volatile ByteBuffer buffer;
+
+        Encoded(Charset charset, String text, Encoded next) {
+            super();
+            this.charset = charset;
+            ByteBuffer buffer = charset.encode(CharBuffer.wrap(text));
+            this.bytes = new byte[buffer.remaining()];
+            buffer.get(this.bytes);
+            this.next = next;
+        }
+
+        Encoded(Encoded encoded, Encoded next) {
+            super();
+            this.charset = encoded.charset;
+            this.bytes = encoded.bytes;
+            this.next = next;
+            this.buffer = encoded.buffer;
+        }
+    }
+
+    /**
+     * Count of charsets retained, for output in a few charsets by one
+     * template
+     */
+    private final static int Charsets = 4;
+
     private final String text;
 
+    private volatile Encoded encoded;
+
     TextNode(int lno, String text) {
         super(lno);
         this.text = text;
     }
 
+    public String getText() {
+        return this.text;
+    }
+
+    /**
+     * @return The text encoded in the charset, retained for the few most
+     *         recently added charsets. The caller must not modify the array.
+     */
+    public byte[] getEncoded(Charset charset) {
+        return this.encoded(charset).bytes;
+    }
+
+    /**
+     * @return A read-only view of a direct buffer holding the text encoded in
+     *         the charset, shared by all callers and independently positioned.
+     */
+    public ByteBuffer getBuffer(Charset charset) {
+        Encoded encoded = this.encoded(charset);
+        ByteBuffer buffer = encoded.buffer;
+        if (null == buffer) {
+            byte[] bytes = encoded.bytes;
+            buffer = ByteBuffer.allocateDirect(bytes.length);
+            buffer.put(bytes);
+            buffer.flip();
+            buffer = buffer.asReadOnlyBuffer();
+            encoded.buffer = buffer;
+        }
+        return buffer.duplicate();
+    }
+
+    private Encoded encoded(Charset charset) {
+        Encoded list = this.encoded;
+        for (Encoded encoded = list; null != encoded; encoded = encoded.next) {
+            if (encoded.charset.equals(charset)) return encoded;
+        }
+        /*
+         * Concurrent additions may lose one another, and encode again
+         */
+        Encoded encoded = new Encoded(charset, this.text, Retain(list, Charsets - 1));
+        this.encoded = encoded;
+        return encoded;
+    }
+
+    /**
+     * @return The list, or a copy of its first count elements
+     */
+    private final static Encoded Retain(Encoded list, int count) {
+        if (null == list) return null;
+        else if (0 == count) return null;
+        else {
+            Encoded tail = Retain(list.next, count - 1);
+            if (tail == list.next) return list;
+            else
+                return new Encoded(list, tail);
+        }
+    }
+
     @Override
-    public void evaluate(TemplateDataDictionary dict, TemplateLoader context,
-        PrintWriter collector) {
-        collector.write(text);
+    public void evaluate(TemplateDataDictionary dict, TemplateLoader context, TemplateOutput out)
+        throws TemplateException {
+        out.write(this);
     }
 }
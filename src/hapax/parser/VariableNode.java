@@ -25,12 +25,15 @@
  */
 package hapax.parser;
 
-import java.io.PrintWriter;
 import java.util.List;
 
 import hapax.Modifiers;
+import hapax.SlotDictionary;
+import hapax.SlotTable;
 import hapax.TemplateDataDictionary;
+import hapax.TemplateException;
 import hapax.TemplateLoader;
+import hapax.TemplateOutput;
 
 /**
  * Represents a node whose output is defined by a value from the
@@ -45,30 +48,50 @@ public final class VariableNode extends TemplateNode {
 
     private final String variable;
 
-    private final List<Modifiers.FLAGS> modifiers;
+    private final int slot;
 
-    VariableNode(int lno, String spec) {
+    private final Modifiers.Chain modifiers;
+
+    VariableNode(int lno, String spec) throws TemplateParserException {
         this(lno, spec.split(":"));
     }
 
-    private VariableNode(int lno, String[] spec) {
-        this(lno, spec[0], Modifiers.parseModifiers(spec));
+    VariableNode(int lno, String[] spec) throws TemplateParserException {
+        super(lno);
+        this.variable = spec[0];
+        this.slot = SlotTable.Slot(this.variable);
+        this.modifiers = Compile(lno, spec);
     }
 
-    private VariableNode(int lno, String variable, List<Modifiers.FLAGS> modifiers) {
-        super(lno);
-        this.variable = variable;
-        this.modifiers = modifiers;
+    public String getVariableName() {
+        return this.variable;
+    }
+
+    /**
+     * @return Slot of the variable name, or negative one for none
+     */
+    public int getVariableSlot() {
+        return this.slot;
+    }
+
+    List<Modifiers.Modifier> getModifiers() {
+        return this.modifiers.getModifiers();
     }
 
     @Override
-    public void evaluate(TemplateDataDictionary dict, TemplateLoader context, PrintWriter out) {
-        String t = dict.getVariable(variable);
+    public void evaluate(TemplateDataDictionary dict, TemplateLoader context, TemplateOutput out)
+        throws TemplateException {
+        String t;
+        if (dict instanceof SlotDictionary && -1 < this.slot)
+            t = ((SlotDictionary) dict).getVariable(this.slot);
+        else
+            t = dict.getVariable(this.variable);
         if (null == t) return;
         else if (this.modifiers.isEmpty()) out.write(t);
         else {
-            t = Modifiers.applyModifiers(t, this.modifiers);
-            out.write(t);
+            Modifiers.Escaper escaper = this.modifiers.escaper(out);
+            escaper.write(t);
+            escaper.complete();
         }
     }
 }